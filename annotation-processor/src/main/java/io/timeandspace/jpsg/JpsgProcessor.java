@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+
+/**
+ * Generates specializations from the templates in the {@value #SOURCE} directories in the first
+ * round of javac, writing them through the {@link Filer}.
+ */
+public class JpsgProcessor extends AbstractProcessor {
+
+    static final String SOURCE = "jpsg.source";
+    static final String DEFAULT_TYPES = "jpsg.defaultTypes";
+    /** Lists separated with {@value #LIST_SEPARATOR}, as in the Gradle plugin */
+    static final String WITH = "jpsg.with";
+    static final String NEVER = "jpsg.never";
+    static final String INCLUDE = "jpsg.include";
+    static final String EXCLUDE = "jpsg.exclude";
+    static final String PROCESSORS = "jpsg.processors";
+    static final String CACHE_DIR = "jpsg.cacheDir";
+
+    private static final String LIST_SEPARATOR = ";";
+
+    private boolean generated = false;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return new HashSet<>(Arrays.asList(
+                SOURCE, DEFAULT_TYPES, WITH, NEVER, INCLUDE, EXCLUDE, PROCESSORS, CACHE_DIR));
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated || roundEnv.processingOver()) {
+            return false;
+        }
+        generated = true;
+        Messager messager = processingEnv.getMessager();
+        Map<String, String> options = processingEnv.getOptions();
+        String source = options.get(SOURCE);
+        if (source == null) {
+            messager.printMessage(Diagnostic.Kind.WARNING,
+                    "JPSG templates directories are not configured with -A" + SOURCE + "=...");
+            return false;
+        }
+        try {
+            Map<String, String> templates = new LinkedHashMap<>();
+            for (String dir : source.split(File.pathSeparator)) {
+                if (!dir.isEmpty()) {
+                    readTemplates(new File(dir).toPath(), templates);
+                }
+            }
+            // Generation is parallel, but Filer is not thread-safe, so the generated files are
+            // written after the generation
+            Map<String, String> generatedFiles = configureGenerator(options).generate(templates);
+            Filer filer = processingEnv.getFiler();
+            for (Map.Entry<String, String> e : generatedFiles.entrySet()) {
+                write(filer, e.getKey(), e.getValue());
+            }
+        } catch (Exception e) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "JPSG failed to generate from " + source + ": " + describe(e));
+        }
+        return false;
+    }
+
+    /** Describes the exception and its causes, skipping the wrappers which only repeat the cause */
+    static String describe(Throwable e) {
+        StringBuilder sb = new StringBuilder();
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable t = e; t != null && seen.add(t); t = t.getCause()) {
+            Throwable cause = t.getCause();
+            if (cause != null &&
+                    (t.getMessage() == null || t.getMessage().equals(cause.toString()))) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append("\nCaused by: ");
+            }
+            sb.append(t instanceof MalformedTemplateException ? t.getMessage() : t.toString());
+        }
+        return sb.toString();
+    }
+
+    private static void readTemplates(Path dir, Map<String, String> templates)
+            throws IOException {
+        if (!Files.isDirectory(dir)) {
+            throw new IOException(dir + " is not a directory");
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            String path = dir.relativize(file).toString().replace(File.separatorChar, '/');
+            templates.put(path, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Generator configureGenerator(Map<String, String> options) {
+        Generator generator = new Generator();
+        String defaultTypes = options.get(DEFAULT_TYPES);
+        if (defaultTypes != null) {
+            generator.setDefaultTypes(defaultTypes);
+        }
+        generator.with(list(options, WITH))
+                .never(list(options, NEVER))
+                .include(list(options, INCLUDE))
+                .exclude(list(options, EXCLUDE));
+        for (String processor : list(options, PROCESSORS)) {
+            generator.addProcessor(processor);
+        }
+        String cacheDir = options.get(CACHE_DIR);
+        if (cacheDir != null) {
+            generator.setCacheDir(cacheDir);
+        }
+        return generator;
+    }
+
+    private static List<String> list(Map<String, String> options, String option) {
+        String value = options.get(option);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<String> list = new ArrayList<>();
+        for (String element : value.split(LIST_SEPARATOR)) {
+            if (!element.trim().isEmpty()) {
+                list.add(element.trim());
+            }
+        }
+        return list;
+    }
+
+    private static void write(Filer filer, String path, String content) throws IOException {
+        FileObject file;
+        if (path.endsWith(".java")) {
+            String name = path.substring(0, path.length() - ".java".length()).replace('/', '.');
+            file = filer.createSourceFile(name);
+        } else {
+            // Not splitting the path into a package and a relative name, because directories
+            // of resources are not necessarily valid package names, e. g. META-INF/services
+            file = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path);
+        }
+        try (Writer writer = file.openWriter()) {
+            writer.write(content);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import javax.tools.Diagnostic
+import javax.tools.DiagnosticCollector
+import javax.tools.JavaFileObject
+import javax.tools.ToolProvider
+
+class JpsgProcessorTest : TempDirTest() {
+
+    private val templatesDir = dir.resolve("templates")
+    private val classesDir = dir.resolve("classes")
+
+    @Test
+    fun testGeneratedSourcesAreCompiled() {
+        template("p/CharHolder.java",
+                "package p;\n\npublic class CharHolder {\n    public char value;\n}\n")
+        val user = dir.resolve("src/p/User.java")
+        user.parentFile.mkdirs()
+        user.writeText("package p;\n\nclass User {\n    IntHolder h = new IntHolder();\n}\n")
+        val diagnostics = compile(user)
+        assertEquals(emptyList<String>(), errors(diagnostics))
+        assertTrue(classesDir.resolve("p/IntHolder.class").isFile)
+        assertTrue(classesDir.resolve("p/User.class").isFile)
+    }
+
+    @Test
+    fun testMalformedTemplateIsReportedWithLocation() {
+        template("p/CharHolder.java", "package p;\n\npublic class CharHolder {\n" +
+                "    String name = \"/* print nonexistent */char/* endprint */\";\n}\n")
+        val source = dir.resolve("src/p/Empty.java")
+        source.parentFile.mkdirs()
+        source.writeText("package p;\n\nclass Empty {}\n")
+        val errors = errors(compile(source))
+        assertEquals(1, errors.size, errors.toString())
+        val error = errors[0]
+        assertTrue(error.contains("Nonexistent dimension: nonexistent"), error)
+        assertTrue(error.contains("CharHolder.java"), error)
+        assertTrue(error.contains("String name = "), error)
+        assertFalse(error.contains("ExecutionException"), error)
+    }
+
+    private fun template(path: String, content: String) {
+        val file = templatesDir.resolve(path)
+        file.parentFile.mkdirs()
+        file.writeText(content)
+    }
+
+    private fun compile(vararg sources: File): DiagnosticCollector<JavaFileObject> {
+        classesDir.mkdirs()
+        val compiler = ToolProvider.getSystemJavaCompiler()
+        val diagnostics = DiagnosticCollector<JavaFileObject>()
+        compiler.getStandardFileManager(null, null, Charsets.UTF_8).use { fileManager ->
+            val options = listOf(
+                    "-d", classesDir.path, "-A${JpsgProcessor.SOURCE}=${templatesDir.path}")
+            val task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    fileManager.getJavaFileObjects(*sources))
+            task.setProcessors(listOf(JpsgProcessor()))
+            task.call()
+        }
+        return diagnostics
+    }
+
+    private fun errors(diagnostics: DiagnosticCollector<JavaFileObject>): List<String> {
+        return diagnostics.diagnostics.filter { it.kind == Diagnostic.Kind.ERROR }
+                .map { it.getMessage(null) }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Attributes memory allocated when generating a synthetic template to the processors of the chain,
+ * excluding the bytes allocated by the processors later in the chain. Usage: {@code
+ * AllocationProfiler [--units N] [--nestingDepth N] [--dimensions N] [--definitions N]
+ * [--iterations N] [--processorProfile P1,P2] [--output file.json]}
+ */
+public final class AllocationProfiler {
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long measurementOverhead;
+
+    private static long childrenAllocatedBytes;
+
+    private static int depth;
+
+    private static long chainAllocatedBytes;
+
+    private static final class ProfilingProcessor extends TemplateProcessor {
+        private final TemplateProcessor processor;
+        long invocations;
+        long allocatedBytes;
+
+        ProfilingProcessor(TemplateProcessor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        protected int priority() {
+            return processor.priority();
+        }
+
+        @Override
+        protected List<String> triggerMarkers() {
+            return processor.triggerMarkers();
+        }
+
+        @Override
+        protected void process(StringBuilder sb,
+                Context source, Context target, String template) {
+            long parentChildrenAllocatedBytes = childrenAllocatedBytes;
+            childrenAllocatedBytes = 0;
+            depth++;
+            long start = allocatedBytes();
+            processor.process(sb, source, target, template);
+            long allocated = allocatedBytes() - start - measurementOverhead;
+            depth--;
+            invocations++;
+            this.allocatedBytes += allocated - childrenAllocatedBytes;
+            childrenAllocatedBytes = parentChildrenAllocatedBytes + allocated;
+            if (depth == 0) {
+                chainAllocatedBytes += allocated;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int units = 20;
+        int nestingDepth = 1;
+        int dimensions = 2;
+        int definitions = 4;
+        int iterations = 200;
+        List<String> processorProfile = null;
+        File output = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("No value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--units": units = Integer.parseInt(value); break;
+                case "--nestingDepth": nestingDepth = Integer.parseInt(value); break;
+                case "--dimensions": dimensions = Integer.parseInt(value); break;
+                case "--definitions": definitions = Integer.parseInt(value); break;
+                case "--iterations": iterations = Integer.parseInt(value); break;
+                case "--processorProfile": processorProfile = Arrays.asList(value.split(",")); break;
+                case "--output": output = new File(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("Thread allocated memory is not supported by the JVM");
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        calibrate();
+
+        Generator defaultGenerator = new Generator();
+        if (processorProfile != null) {
+            defaultGenerator.setProcessorProfile(processorProfile);
+        }
+        List<ProfilingProcessor> processors = profilingChain(defaultGenerator.getProcessors());
+        Generator generator = new Generator()
+                // Only the profiling processors, see profilingChain()
+                .setProcessorProfile(Collections.<String>emptyList())
+                .setParallelism(1);
+        // Processors of equal priorities are linked in the reverse order of addition
+        for (int i = processors.size() - 1; i >= 0; i--) {
+            generator.addProcessor(processors.get(i));
+        }
+        generator.init();
+
+        String className = SyntheticTemplates.className(dimensions, 0);
+        Map<String, String> templates = Collections.singletonMap(
+                "synthetic/" + className + ".java", SyntheticTemplates.templateFile(
+                        className, units, nestingDepth, dimensions, definitions));
+
+        // Warmup, not to attribute allocations of class loading, JIT and caches
+        for (int i = 0; i < iterations; i++) {
+            generator.generate(templates);
+        }
+        for (ProfilingProcessor processor : processors) {
+            processor.invocations = 0;
+            processor.allocatedBytes = 0;
+        }
+        chainAllocatedBytes = 0;
+        long outputBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (String generated : generator.generate(templates).values()) {
+                outputBytes += generated.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        String report = report(units, nestingDepth, dimensions, definitions, iterations,
+                outputBytes, processors);
+        if (output != null) {
+            File dir = output.getAbsoluteFile().getParentFile();
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            Files.write(output.toPath(), report.getBytes(StandardCharsets.UTF_8));
+            System.out.println("Allocation profile written to " + output);
+        } else {
+            System.out.print(report);
+        }
+    }
+
+    private static void calibrate() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 10_000; i++) {
+            long start = allocatedBytes();
+            min = Math.min(min, allocatedBytes() - start);
+        }
+        measurementOverhead = min;
+    }
+
+    private static List<ProfilingProcessor> profilingChain(List<TemplateProcessor> chain) {
+        List<ProfilingProcessor> processors = new ArrayList<>();
+        for (TemplateProcessor processor : chain) {
+            processors.add(new ProfilingProcessor(processor));
+        }
+        for (int i = 0; i < processors.size() - 1; i++) {
+            processors.get(i).processor.setNext(processors.get(i + 1));
+        }
+        return processors;
+    }
+
+    private static String report(int units, int nestingDepth, int dimensions, int definitions,
+            int iterations, long outputBytes, List<ProfilingProcessor> processors) {
+        double outputKb = outputBytes / 1024.0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"parameters\": {\"units\": ").append(units)
+                .append(", \"nestingDepth\": ").append(nestingDepth)
+                .append(", \"dimensions\": ").append(dimensions)
+                .append(", \"definitions\": ").append(definitions)
+                .append(", \"iterations\": ").append(iterations).append("},\n");
+        sb.append("  \"outputBytes\": ").append(outputBytes).append(",\n");
+        sb.append("  \"chain\": {\"allocatedBytes\": ").append(chainAllocatedBytes)
+                .append(", \"bytesPerOutputKb\": ")
+                .append(Math.round(chainAllocatedBytes / outputKb)).append("},\n");
+        sb.append("  \"processors\": [\n");
+        for (int i = 0; i < processors.size(); i++) {
+            ProfilingProcessor processor = processors.get(i);
+            sb.append("    {\"name\": \"")
+                    .append(processor.processor.getClass().getSimpleName())
+                    .append("\", \"invocations\": ").append(processor.invocations)
+                    .append(", \"allocatedBytes\": ").append(processor.allocatedBytes)
+                    .append(", \"bytesPerOutputKb\": ")
+                    .append(Math.round(processor.allocatedBytes / outputKb)).append("}");
+            sb.append(i < processors.size() - 1 ? ",\n" : "\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private AllocationProfiler() {}
+}
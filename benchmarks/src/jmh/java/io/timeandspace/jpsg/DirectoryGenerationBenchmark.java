@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures {@link Generator#generate()} over a directory of synthetic templates, into a clean or an
+ * up-to-date target directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryGenerationBenchmark {
+
+    @Param({"10", "50"})
+    public int templates;
+
+    @Param({"20"})
+    public int units;
+
+    @Param({"1"})
+    public int nestingDepth;
+
+    @Param({"1", "2"})
+    public int dimensions;
+
+    @Param({"5"})
+    public int definitions;
+
+    @Param({"clean", "upToDate"})
+    public String mode;
+
+    private File source;
+    private File target;
+
+    @Setup
+    public void setUp() throws IOException {
+        File dir = Files.createTempDirectory("jpsg-benchmark").toFile();
+        source = SyntheticTemplates.writeTemplates(new File(dir, "source"), templates,
+                units, nestingDepth, dimensions, definitions);
+        target = new File(dir, "target");
+        if (mode.equals("upToDate")) {
+            generate();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanTarget() {
+        if (mode.equals("clean")) {
+            SyntheticTemplates.deleteRecursively(target);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticTemplates.deleteRecursively(source.getParentFile());
+    }
+
+    @Benchmark
+    public File generate() throws IOException {
+        new Generator().setSource(source).setTarget(target).generate();
+        return target;
+    }
+}
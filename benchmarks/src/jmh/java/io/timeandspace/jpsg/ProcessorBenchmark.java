@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures built-in processors in isolation, each applied to the same synthetic template rather
+ * than to the output of the preceding processors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    @Param({"OptionProcessor", "BlocksProcessor", "DefinitionProcessor", "ConstProcessor",
+            "PrintProcessor", "GenericsProcessor", "FloatingWrappingProcessor",
+            "RawModifierProcessor", "BitsModifierPreProcessor", "BitsModifierPostProcessor",
+            "AAnProcessor"})
+    public String processor;
+
+    @Param({"10", "100"})
+    public int units;
+
+    @Param({"0", "2"})
+    public int nestingDepth;
+
+    @Param({"1", "3"})
+    public int dimensions;
+
+    @Param({"0", "10"})
+    public int definitions;
+
+    private TemplateProcessor templateProcessor;
+    private Context source;
+    private Context target;
+    private String template;
+
+    @Setup
+    public void setUp() {
+        Generator generator = new Generator();
+        generator.init();
+        templateProcessor = createProcessor(generator, processor);
+        // Set by the generator when the processor is added to the chain
+        templateProcessor.setDimensionsParser(
+                new Dimensions.Parser(PrimitiveType.NUMERIC_TYPES_WITH_SHORT_IDS));
+        String className = SyntheticTemplates.className(dimensions, 0);
+        Generator.Companion.setCurrentSourceFile(new File(className + ".java"));
+        source = SyntheticTemplates.sourceContext(dimensions);
+        target = SyntheticTemplates.targetContext(dimensions, 1);
+        template = SyntheticTemplates.templateBody(
+                className, units, nestingDepth, dimensions, definitions);
+    }
+
+    private static TemplateProcessor createProcessor(Generator generator, String processor) {
+        switch (processor) {
+            case "OptionProcessor": return new OptionProcessor();
+            case "BlocksProcessor": return generator.new BlocksProcessor();
+            case "DefinitionProcessor": return new DefinitionProcessor();
+            case "ConstProcessor": return new ConstProcessor();
+            case "PrintProcessor": return new PrintProcessor();
+            case "GenericsProcessor": return new GenericsProcessor();
+            case "FloatingWrappingProcessor": return new FloatingWrappingProcessor();
+            case "RawModifierProcessor": return new RawModifierProcessor();
+            case "BitsModifierPreProcessor": return new BitsModifierPreProcessor();
+            case "BitsModifierPostProcessor": return new BitsModifierPostProcessor();
+            case "AAnProcessor": return new AAnProcessor();
+            default: throw new IllegalArgumentException("Unknown processor: " + processor);
+        }
+    }
+
+    @Benchmark
+    public String process() {
+        return templateProcessor.generate(source, target, template);
+    }
+}
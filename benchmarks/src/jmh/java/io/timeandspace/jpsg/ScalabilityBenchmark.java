@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.timeandspace.jpsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+
+/**
+ * Measures how throughput of directory generation scales with {@link Generator#setParallelism}.
+ * Usage: {@code ScalabilityBenchmark [--files N] [--dimensions N] [--options N]
+ * [--blockShare 0..1] [--units N] [--parallelism 1,2,4] [--warmup N] [--runs N]
+ * [--output file.json]}
+ */
+public final class ScalabilityBenchmark {
+
+    private static final class Result {
+        final int parallelism;
+        final long medianNanos;
+
+        Result(int parallelism, long medianNanos) {
+            this.parallelism = parallelism;
+            this.medianNanos = medianNanos;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int files = 50;
+        int dimensions = 2;
+        int options = 3;
+        double blockShare = 0.2;
+        int units = 20;
+        List<Integer> parallelisms = defaultParallelisms();
+        int warmup = 3;
+        int runs = 5;
+        File output = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("No value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--files": files = Integer.parseInt(value); break;
+                case "--dimensions": dimensions = Integer.parseInt(value); break;
+                case "--options": options = Integer.parseInt(value); break;
+                case "--blockShare": blockShare = Double.parseDouble(value); break;
+                case "--units": units = Integer.parseInt(value); break;
+                case "--parallelism": parallelisms = parseList(value); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--runs": runs = Integer.parseInt(value); break;
+                case "--output": output = new File(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (blockShare < 0 || blockShare > 1) {
+            throw new IllegalArgumentException(
+                    "Block share should be in [0, 1] range, " + blockShare + " given");
+        }
+
+        File dir = Files.createTempDirectory("jpsg-scalability").toFile();
+        try {
+            File source = SyntheticTemplates.writeCorpus(new File(dir, "source"),
+                    files, dimensions, options, blockShare, units);
+            File target = new File(dir, "target");
+            int specializations = 0;
+            List<Result> results = new ArrayList<>();
+            for (int parallelism : parallelisms) {
+                long[] times = new long[runs];
+                for (int run = -warmup; run < runs; run++) {
+                    SyntheticTemplates.deleteRecursively(target);
+                    Generator generator = new Generator()
+                            .setSource(source)
+                            .setTarget(target)
+                            .setParallelism(parallelism);
+                    long start = System.nanoTime();
+                    generator.generate();
+                    long time = System.nanoTime() - start;
+                    if (run >= 0) {
+                        times[run] = time;
+                    }
+                }
+                specializations = countFiles(target);
+                Arrays.sort(times);
+                results.add(new Result(parallelism, times[runs / 2]));
+                System.out.printf("parallelism %3d: %8.1f ms%n",
+                        parallelism, times[runs / 2] / 1e6);
+            }
+
+            String report = report(files, dimensions, options, blockShare, units, runs,
+                    specializations, results);
+            if (output != null) {
+                File outputDir = output.getAbsoluteFile().getParentFile();
+                if (!outputDir.mkdirs() && !outputDir.isDirectory()) {
+                    throw new IOException("Failed to create " + outputDir);
+                }
+                Files.write(output.toPath(), report.getBytes(StandardCharsets.UTF_8));
+                System.out.println("Scalability report written to " + output);
+            } else {
+                System.out.print(report);
+            }
+        } finally {
+            SyntheticTemplates.deleteRecursively(dir);
+        }
+    }
+
+    private static List<Integer> defaultParallelisms() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> parallelisms = new TreeSet<>();
+        for (int p = 1; p < processors; p *= 2) {
+            parallelisms.add(p);
+        }
+        parallelisms.add(processors);
+        return new ArrayList<>(parallelisms);
+    }
+
+    private static List<Integer> parseList(String value) {
+        List<Integer> list = new ArrayList<>();
+        for (String s : value.split(",")) {
+            list.add(Integer.parseInt(s.trim()));
+        }
+        return list;
+    }
+
+    private static int countFiles(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.isFile() ? 1 : 0;
+        }
+        int count = 0;
+        for (File child : children) {
+            count += countFiles(child);
+        }
+        return count;
+    }
+
+    private static String report(int files, int dimensions, int options, double blockShare,
+            int units, int runs, int specializations, List<Result> results) {
+        // Speedup relative to the parallelism of 1. If it wasn't measured, the lowest measured
+        // parallelism is assumed to be perfectly efficient
+        Result base = results.get(0);
+        for (Result result : results) {
+            if (result.parallelism < base.parallelism) {
+                base = result;
+            }
+        }
+        double baseTime = base.medianNanos * (double) base.parallelism;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"parameters\": {\"files\": ").append(files)
+                .append(", \"dimensions\": ").append(dimensions)
+                .append(", \"options\": ").append(options)
+                .append(", \"blockShare\": ").append(blockShare)
+                .append(", \"units\": ").append(units)
+                .append(", \"runs\": ").append(runs).append("},\n");
+        sb.append("  \"specializations\": ").append(specializations).append(",\n");
+        sb.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            double seconds = result.medianNanos / 1e9;
+            double speedup = baseTime / result.medianNanos;
+            sb.append("    {\"parallelism\": ").append(result.parallelism)
+                    .append(", \"medianMillis\": ")
+                    .append(String.format(Locale.ROOT, "%.2f", result.medianNanos / 1e6))
+                    .append(", \"specializationsPerSecond\": ")
+                    .append(Math.round(specializations / seconds))
+                    .append(", \"speedup\": ")
+                    .append(String.format(Locale.ROOT, "%.3f", speedup))
+                    .append(", \"efficiency\": ")
+                    .append(String.format(Locale.ROOT, "%.3f", speedup / result.parallelism))
+                    .append("}");
+            sb.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private ScalabilityBenchmark() {}
+}
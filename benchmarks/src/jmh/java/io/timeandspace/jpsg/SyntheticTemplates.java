@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/** Builds synthetic templates for benchmarks */
+final class SyntheticTemplates {
+
+    static final String[] DIMENSIONS = {"key", "value", "elem", "left", "right"};
+
+    /** Must be different for different dimensions */
+    static final PrimitiveType[] SOURCE_TYPES = {
+            PrimitiveType.INT, PrimitiveType.LONG, PrimitiveType.CHAR,
+            PrimitiveType.SHORT, PrimitiveType.BYTE};
+
+    static final PrimitiveType[][] TARGET_TYPES = {
+            {PrimitiveType.LONG, PrimitiveType.DOUBLE},
+            {PrimitiveType.INT, PrimitiveType.FLOAT},
+            {PrimitiveType.INT, PrimitiveType.DOUBLE},
+            {PrimitiveType.LONG, PrimitiveType.FLOAT},
+            {PrimitiveType.INT, PrimitiveType.DOUBLE}};
+
+    static final int MAX_DIMENSIONS = DIMENSIONS.length;
+
+    private static final PrimitiveType[] OPTION_POOL = {
+            PrimitiveType.BYTE, PrimitiveType.CHAR, PrimitiveType.SHORT, PrimitiveType.INT,
+            PrimitiveType.LONG, PrimitiveType.FLOAT, PrimitiveType.DOUBLE};
+
+    static final int MAX_OPTIONS = OPTION_POOL.length;
+
+    static Context sourceContext(int dimensions) {
+        Context.Builder builder = Context.builder();
+        for (int i = 0; i < dimensions; i++) {
+            builder.put(DIMENSIONS[i], SOURCE_TYPES[i]);
+        }
+        return builder.makeContext();
+    }
+
+    static Context targetContext(int dimensions, int variant) {
+        Context.Builder builder = Context.builder();
+        for (int i = 0; i < dimensions; i++) {
+            builder.put(DIMENSIONS[i], TARGET_TYPES[i][variant]);
+        }
+        return builder.makeContext();
+    }
+
+    static String className(int dimensions, int index) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < dimensions; i++) {
+            sb.append(SOURCE_TYPES[i].neutralIdReplacement.title);
+        }
+        return sb.append("Synthetic").append(index).toString();
+    }
+
+    static List<PrimitiveType> options(int dimension, int options) {
+        if (options < 1 || options > MAX_OPTIONS) {
+            throw new IllegalArgumentException("Options should be in [1, " + MAX_OPTIONS +
+                    "] range, " + options + " given");
+        }
+        List<PrimitiveType> result = new ArrayList<>();
+        result.add(SOURCE_TYPES[dimension]);
+        for (PrimitiveType type : TARGET_TYPES[dimension]) {
+            result.add(type);
+        }
+        for (PrimitiveType type : OPTION_POOL) {
+            if (!result.contains(type)) {
+                result.add(type);
+            }
+        }
+        return result.subList(0, options);
+    }
+
+    private static void appendHeader(StringBuilder sb, int dimensions, int options) {
+        sb.append("/* with");
+        for (int i = 0; i < dimensions; i++) {
+            sb.append(' ');
+            List<PrimitiveType> dimensionOptions = options(i, options);
+            for (int o = 0; o < dimensionOptions.size(); o++) {
+                sb.append(o > 0 ? "|" : "").append(dimensionOptions.get(o).standalone);
+            }
+            sb.append(' ').append(DIMENSIONS[i]);
+        }
+        sb.append(" */\n");
+    }
+
+    static String templateFile(String className,
+            int units, int nestingDepth, int dimensions, int definitions) {
+        StringBuilder sb = new StringBuilder();
+        appendHeader(sb, dimensions, TARGET_TYPES[0].length + 1);
+        return sb.append(templateBody(className, units, nestingDepth, dimensions, definitions))
+                .toString();
+    }
+
+    static String templateBody(String className,
+            int units, int nestingDepth, int dimensions, int definitions) {
+        if (dimensions < 1 || dimensions > MAX_DIMENSIONS) {
+            throw new IllegalArgumentException("Dimensions should be in [1, " + MAX_DIMENSIONS +
+                    "] range, " + dimensions + " given");
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("package synthetic;\n\n");
+        sb.append("public class ").append(className).append(" {\n");
+        for (int d = 0; d < definitions; d++) {
+            PrimitiveType type = SOURCE_TYPES[d % dimensions];
+            sb.append("    /* define def").append(d).append(" */")
+                    .append("(").append(type.standalone).append(") ").append(d)
+                    .append("/* enddefine */\n");
+        }
+        for (int u = 0; u < units; u++) {
+            appendBlock(sb, u, nestingDepth, dimensions, definitions);
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void appendBlock(StringBuilder sb, int unit, int depth,
+            int dimensions, int definitions) {
+        if (depth == 0) {
+            appendUnit(sb, unit, dimensions, definitions);
+            return;
+        }
+        int dim = depth % dimensions;
+        String dimension = DIMENSIONS[dim];
+        sb.append("    /* if ").append(SOURCE_TYPES[dim].standalone).append(' ')
+                .append(dimension).append(" */\n");
+        appendBlock(sb, unit, depth - 1, dimensions, definitions);
+        for (PrimitiveType targetType : TARGET_TYPES[dim]) {
+            sb.append("    /* elif ").append(targetType.standalone).append(' ')
+                    .append(dimension).append(" */\n");
+            appendBlock(sb, unit, depth - 1, dimensions, definitions);
+        }
+        sb.append("    /* endif */\n");
+    }
+
+    private static void appendUnit(StringBuilder sb, int unit, int dimensions, int definitions) {
+        for (int i = 0; i < dimensions; i++) {
+            PrimitiveType type = SOURCE_TYPES[i];
+            String t = type.standalone;
+            String title = type.neutralIdReplacement.title;
+            String dim = DIMENSIONS[i];
+            sb.append("    /** Returns /*a*/ ").append(t).append(" value. */\n");
+            sb.append("    public ").append(t).append(" get").append(title).append(unit)
+                    .append("(").append(t).append(' ').append(dim).append(") {\n");
+            sb.append("        ").append(t).append(" zero = /* const ").append(dim)
+                    .append(" default */0/* endconst */;\n");
+            sb.append("        ").append(t).append(" wrapped = /* wrap ").append(dim)
+                    .append(" */").append(dim).append("/**/;\n");
+            if (definitions > 0) {
+                sb.append("        ").append(t).append(" defined = /* def")
+                        .append(unit % definitions).append(" */;\n");
+            }
+            sb.append("        String name = \"/* print ").append(dim).append(" */")
+                    .append(title).append("/* endprint */\";\n");
+            sb.append("        return ").append(dim).append(" != zero ? ").append(dim)
+                    .append(" : zero;\n");
+            sb.append("    }\n\n");
+        }
+    }
+
+    static File writeTemplates(File dir, int templates,
+            int units, int nestingDepth, int dimensions, int definitions) throws IOException {
+        File packageDir = new File(dir, "synthetic");
+        if (!packageDir.mkdirs() && !packageDir.isDirectory()) {
+            throw new IOException("Failed to create " + packageDir);
+        }
+        for (int i = 0; i < templates; i++) {
+            String className = className(dimensions, i);
+            String template =
+                    templateFile(className, units, nestingDepth, dimensions, definitions);
+            Files.write(new File(packageDir, className + ".java").toPath(),
+                    template.getBytes(StandardCharsets.UTF_8));
+        }
+        return dir;
+    }
+
+    static File writeCorpus(File dir, int files, int dimensions, int options,
+            double blockShare, int units) throws IOException {
+        File packageDir = new File(dir, "synthetic");
+        if (!packageDir.mkdirs() && !packageDir.isDirectory()) {
+            throw new IOException("Failed to create " + packageDir);
+        }
+        for (int i = 0; i < files; i++) {
+            String className = className(dimensions, i);
+            StringBuilder sb = new StringBuilder();
+            appendHeader(sb, dimensions, options);
+            sb.append("package synthetic;\n\n");
+            sb.append("public class ").append(className).append(" {\n");
+            int blocks = 0;
+            for (int u = 0; u < units; u++) {
+                boolean inBlock = (int) ((u + 1) * blockShare) > (int) (u * blockShare);
+                if (!inBlock) {
+                    appendUnit(sb, u, dimensions, 0);
+                } else if (blocks++ % 2 == 0) {
+                    int dim = u % dimensions;
+                    List<PrimitiveType> dimensionOptions = options(dim, options);
+                    for (int o = 0; o < dimensionOptions.size(); o++) {
+                        sb.append(o == 0 ? "    /* if " : "    /* elif ")
+                                .append(dimensionOptions.get(o).standalone).append(' ')
+                                .append(DIMENSIONS[dim]).append(" */\n");
+                        appendUnit(sb, u, dimensions, 0);
+                    }
+                    sb.append("    /* endif */\n");
+                } else {
+                    sb.append("    /* with Fast|Safe mode */\n");
+                    sb.append("    public static final String FAST_MODE_").append(u)
+                            .append(" = \"/* print mode */Fast/* endprint */\";\n");
+                    sb.append("    /* endwith */\n");
+                }
+            }
+            sb.append("}\n");
+            Files.write(new File(packageDir, className + ".java").toPath(),
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private SyntheticTemplates() {}
+}
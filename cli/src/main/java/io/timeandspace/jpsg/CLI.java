@@ -18,18 +18,22 @@ package io.timeandspace.jpsg;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.converters.IParameterSplitter;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public final class CLI {
 
     private static class Args {
-        @Parameter(description = "TEMPLATES_ROOT_DIR or FILE, TARGET_ROOT_DIR",
-                arity = 2, required = true)
-        List<String> roots;
+        @Parameter(description = "TEMPLATES_ROOT_DIR or FILE, TARGET_ROOT_DIR (the latter is " +
+                "omitted if --target-archive is given, and optional if --classes-dir is given)")
+        List<String> roots = new ArrayList<>();
 
         @Parameter(
                 names = {"-p", "--processor"},
@@ -38,6 +42,14 @@ public final class CLI {
                         "subclass) to generation chain")
         List<String> processors = new ArrayList<>();
 
+        @Parameter(
+                names = "--processor-profile",
+                description = "Simple class name of a built-in processor to run, others are " +
+                        "not run. Example for resources: --processor-profile BlocksProcessor " +
+                        "--processor-profile OptionProcessor",
+                splitter = NoSplitter.class)
+        List<String> processorProfile = new ArrayList<>();
+
         @Parameter(
                 names = "--defaultTypes",
                 description = "Set of Java types used to populate target contexts in templates " +
@@ -82,6 +94,151 @@ public final class CLI {
                 splitter = NoSplitter.class)
         List<String> defaultContext = new ArrayList<>();
 
+        @Parameter(
+                names = "--target-archive",
+                description = "Zip archive (e. g. a .srcjar) to write generated files into, " +
+                        "instead of TARGET_ROOT_DIR. The archive is not rewritten if its " +
+                        "entries are up to date")
+        String targetArchive;
+
+        @Parameter(
+                names = "--stored",
+                description = "Store entries of --target-archive without compression")
+        boolean stored = false;
+
+        @Parameter(
+                names = "--classes-dir",
+                description = "Directory to compile generated sources to, in process. Generated " +
+                        "sources are written to TARGET_ROOT_DIR only if it is given. Class files " +
+                        "and sources written by the previous run and no longer generated are " +
+                        "deleted, as listed in CLASSES_DIR.jpsg-outputs next to the directory; " +
+                        "other files in it are kept")
+        String classesDir;
+
+        @Parameter(
+                names = {"-cp", "--classpath"},
+                description = "Class path of the compilation of generated sources, " +
+                        "see --classes-dir")
+        String classpath;
+
+        @Parameter(
+                names = "--javac-option",
+                description = "Adds the javac option for the compilation of generated sources, " +
+                        "see --classes-dir. Example: --javac-option -g",
+                splitter = NoSplitter.class)
+        List<String> javacOptions = new ArrayList<>();
+
+        @Parameter(
+                names = "--bytecode-specialization",
+                description = "Derive class files of generated sources which differ from other " +
+                        "sources only in names from the class files of those sources, instead " +
+                        "of compiling them, see --classes-dir")
+        boolean bytecodeSpecialization = false;
+
+        @Parameter(
+                names = "--retained-outputs",
+                description = "File with the paths of generated Java sources to retain, one per " +
+                        "line, relative to TARGET_ROOT_DIR. Other Java sources are not " +
+                        "generated. If --consumer-classes or --consumer-sources are given, the " +
+                        "file is written with the sources reachable from them before generation")
+        String retainedOutputs;
+
+        @Parameter(
+                names = "--consumer-classes",
+                description = "Directory or jar with the class files using generated classes, " +
+                        "see --retained-outputs. Classes used only by their inlined compile-time " +
+                        "constants are not found in class files, see --consumer-sources",
+                splitter = NoSplitter.class)
+        List<String> consumerClasses = new ArrayList<>();
+
+        @Parameter(
+                names = "--consumer-sources",
+                description = "Directory with the sources using generated classes, " +
+                        "see --retained-outputs",
+                splitter = NoSplitter.class)
+        List<String> consumerSources = new ArrayList<>();
+
+        @Parameter(
+                names = "--usage-profile",
+                description = "Runtime class usage profile: -Xlog:class+load output, " +
+                        "jfr print output with ClassLoad or ObjectAllocationSample events, " +
+                        "GC.class_histogram output or a list of class names with counts. " +
+                        "Primitive specializations which are used less than " +
+                        "--hotness-threshold times are not generated",
+                splitter = NoSplitter.class)
+        List<String> usageProfiles = new ArrayList<>();
+
+        @Parameter(
+                names = "--hotness-threshold",
+                description = "Min number of uses of a primitive specialization in the " +
+                        "--usage-profile, for it to be generated")
+        long hotnessThreshold = 1;
+
+        @Parameter(
+                names = "--shard",
+                description = "Generate only the given partition of the work, i/N, e. g. 2/4, so " +
+                        "that N processes on the same or different machines generate disjoint " +
+                        "parts of the outputs. All of them should be given the same templates " +
+                        "and options")
+        String shard;
+
+        @Parameter(
+                names = "--shard-manifest",
+                description = "File to write the manifest of the --shard to, for --verify-shards")
+        String shardManifest;
+
+        @Parameter(
+                names = "--verify-shards",
+                description = "Instead of generating, verify that the shards with the given " +
+                        "manifests cover all outputs of generation from TEMPLATES_ROOT_DIR, and " +
+                        "find stale files in TARGET_ROOT_DIR (if given) which are generated by " +
+                        "none of the shards",
+                splitter = NoSplitter.class)
+        List<String> verifyShards = new ArrayList<>();
+
+        @Parameter(
+                names = "--delete-stale",
+                description = "Delete the stale files found by --verify-shards")
+        boolean deleteStale = false;
+
+        @Parameter(
+                names = "--cache-dir",
+                description = "Directory of the generated outputs cache, shared between " +
+                        "generator runs. Outputs found in the cache are linked or copied to " +
+                        "TARGET_ROOT_DIR instead of being generated")
+        String cacheDir;
+
+        @Parameter(
+                names = "--cache-max-size",
+                description = "Max size of the generated outputs cache, in megabytes. Least " +
+                        "recently used outputs are evicted from the cache when it grows larger")
+        long cacheMaxSizeMb = OutputCache.DEFAULT_MAX_SIZE / (1024 * 1024);
+
+        @Parameter(
+                names = "--parallelism",
+                description = "Number of threads generating specializations. By default, the " +
+                        "common fork/join pool is used")
+        int parallelism = 0;
+
+        @Parameter(
+                names = "--report",
+                description = "File to write the generation report to, as JSON: time, " +
+                        "input and output chars and matches per processor, and the numbers of " +
+                        "generated and filtered contexts and time per template file")
+        String report;
+
+        @Parameter(
+                names = "--preview-server",
+                description = "Instead of generating from TEMPLATES_ROOT_DIR, serve previews of " +
+                        "single specializations of the templates read from the standard input, " +
+                        "writing them to the standard output, see PreviewServer")
+        boolean previewServer = false;
+
+        @Parameter(
+                names = {"-q", "--quiet"},
+                description = "Don't print the generation progress to the standard error")
+        boolean quiet = false;
+
         @Parameter(names = {"-h", "--help"}, description = "Show this help", help = true)
         private boolean help;
     }
@@ -93,18 +250,234 @@ public final class CLI {
             jc.usage();
             return;
         }
+        int minRoots = parsedArgs.targetArchive != null || parsedArgs.classesDir != null ? 1 : 2;
+        int maxRoots = parsedArgs.targetArchive != null ? 1 : 2;
+        if (parsedArgs.previewServer) {
+            minRoots = 0;
+            maxRoots = 0;
+        } else if (!parsedArgs.verifyShards.isEmpty()) {
+            minRoots = 1;
+            maxRoots = 2;
+        }
+        if (parsedArgs.roots.size() < minRoots || parsedArgs.roots.size() > maxRoots) {
+            throw new ParameterException("Expected " + minRoots + ".." + maxRoots +
+                    " root(s), " + parsedArgs.roots + " given");
+        }
         Generator generator = new Generator();
         for (String processor : parsedArgs.processors) {
             generator.addProcessor(processor);
         }
+        if (!parsedArgs.processorProfile.isEmpty()) {
+            generator.setProcessorProfile(parsedArgs.processorProfile);
+        }
         generator.setDefaultTypes(parsedArgs.defaultTypes)
                 .never(parsedArgs.never)
                 .includeCLI(parsedArgs.included)
                 .excludeCLI(parsedArgs.excluded)
-                .withCLI(parsedArgs.defaultContext)
-                .setSource(parsedArgs.roots.get(0))
-                .setTarget(parsedArgs.roots.get(1))
-                .generate();
+                .withCLI(parsedArgs.defaultContext);
+        if (parsedArgs.previewServer) {
+            new PreviewServer(generator, System.in, System.out).serve();
+            return;
+        }
+        generator.setSource(parsedArgs.roots.get(0));
+        if (!parsedArgs.verifyShards.isEmpty()) {
+            if (parsedArgs.roots.size() > 1) {
+                generator.setTarget(parsedArgs.roots.get(1));
+            }
+            int exitCode = verifyShards(generator, parsedArgs.verifyShards,
+                    parsedArgs.deleteStale);
+            if (exitCode != 0) {
+                System.exit(exitCode);
+            }
+            return;
+        }
+        if (parsedArgs.targetArchive != null) {
+            generator.setTargetArchive(parsedArgs.targetArchive)
+                    .setArchiveStored(parsedArgs.stored);
+        } else if (parsedArgs.roots.size() > 1) {
+            generator.setTarget(parsedArgs.roots.get(1));
+        }
+        if (parsedArgs.classesDir != null) {
+            generator.setClassesDir(parsedArgs.classesDir)
+                    .addCompilerOptions(parsedArgs.javacOptions)
+                    .setBytecodeSpecialization(parsedArgs.bytecodeSpecialization);
+            if (parsedArgs.classpath != null) {
+                List<File> classpath = new ArrayList<>();
+                for (String path : parsedArgs.classpath.split(File.pathSeparator)) {
+                    if (!path.isEmpty()) {
+                        classpath.add(new File(path));
+                    }
+                }
+                generator.addCompileClasspath(classpath);
+            }
+        }
+        if (parsedArgs.retainedOutputs != null) {
+            File retainedOutputs = new File(parsedArgs.retainedOutputs);
+            if (!parsedArgs.consumerClasses.isEmpty() || !parsedArgs.consumerSources.isEmpty()) {
+                analyzeReachability(generator, parsedArgs, retainedOutputs);
+            }
+            generator.setRetainedOutputs(retainedOutputs);
+        } else if (!parsedArgs.consumerClasses.isEmpty() ||
+                !parsedArgs.consumerSources.isEmpty()) {
+            throw new ParameterException(
+                    "--consumer-classes and --consumer-sources require --retained-outputs");
+        }
+        if (!parsedArgs.usageProfiles.isEmpty()) {
+            File[] usageProfiles = new File[parsedArgs.usageProfiles.size()];
+            for (int i = 0; i < usageProfiles.length; i++) {
+                usageProfiles[i] = new File(parsedArgs.usageProfiles.get(i));
+            }
+            generator.setUsageProfile(usageProfiles)
+                    .setHotnessThreshold(parsedArgs.hotnessThreshold);
+        }
+        if (parsedArgs.shard != null) {
+            generator.setPartition(parsedArgs.shard);
+            if (parsedArgs.shardManifest != null) {
+                generator.setPartitionManifest(parsedArgs.shardManifest);
+            }
+        } else if (parsedArgs.shardManifest != null) {
+            throw new ParameterException("--shard-manifest requires --shard");
+        }
+        if (parsedArgs.cacheDir != null) {
+            generator.setCacheDir(parsedArgs.cacheDir)
+                    .setCacheMaxSize(parsedArgs.cacheMaxSizeMb * 1024 * 1024);
+        }
+        if (parsedArgs.parallelism > 0) {
+            generator.setParallelism(parsedArgs.parallelism);
+        }
+        if (parsedArgs.report != null) {
+            generator.setReportFile(parsedArgs.report);
+        }
+        if (!parsedArgs.quiet) {
+            // Progress rewritten in place would flood logs when the output is not a terminal
+            generator.addListener(new ProgressLine(System.console() != null));
+        }
+        generator.generate();
+    }
+
+    private static void analyzeReachability(Generator generator, Args parsedArgs,
+            File retainedOutputs) throws IOException {
+        ReachabilityAnalysis analysis = new ReachabilityAnalysis(generator);
+        for (String classes : parsedArgs.consumerClasses) {
+            analysis.addConsumerClasses(new File(classes));
+        }
+        for (String sources : parsedArgs.consumerSources) {
+            analysis.addConsumerSources(new File(sources));
+        }
+        ReachabilityAnalysis.Result result = analysis.analyze();
+        result.writeRetainedOutputs(retainedOutputs);
+        System.err.println(result);
+        if (!result.getExcludeConditions().isEmpty()) {
+            System.err.println("Contexts of unreachable classes only:");
+            for (String condition : result.getExcludeConditions()) {
+                System.err.println("  --exclude \"" + condition + "\"");
+            }
+        }
+    }
+
+    static int verifyShards(Generator generator, List<String> manifestPaths, boolean deleteStale)
+            throws IOException {
+        List<File> manifests = new ArrayList<>();
+        for (String manifest : manifestPaths) {
+            manifests.add(new File(manifest));
+        }
+        PartitionVerification verification = generator.verifyPartitions(manifests);
+        System.err.println(verification);
+        List<File> staleFiles = verification.getStaleFiles();
+        if (staleFiles.isEmpty()) {
+            return verification.isComplete() ? 0 : 1;
+        }
+        if (!deleteStale) {
+            return 1;
+        }
+        // The outputs of missing or invalid partitions look stale
+        if (!verification.getMissingPartitions().isEmpty() ||
+                !verification.getInvalidManifests().isEmpty()) {
+            System.err.println("Stale files are not deleted because some partitions are missing " +
+                    "or invalid");
+            return 1;
+        }
+        boolean staleFilesLeft = false;
+        for (File staleFile : staleFiles) {
+            if (!staleFile.delete()) {
+                staleFilesLeft = true;
+            }
+        }
+        System.err.println(staleFilesLeft ? "Failed to delete some stale files" :
+                "Stale files deleted");
+        return verification.isComplete() && !staleFilesLeft ? 0 : 1;
+    }
+
+    /** Prints a single progress line, updated in place if the standard error is a terminal */
+    private static class ProgressLine implements GenerationListener {
+        private static final long UPDATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final AtomicInteger finishedFiles = new AtomicInteger();
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicInteger fromCache = new AtomicInteger();
+        private final boolean interactive;
+        private volatile int templateFiles;
+        private long lastUpdateNanos;
+
+        ProgressLine(boolean interactive) {
+            this.interactive = interactive;
+        }
+
+        @Override
+        public void generationStarted(File source, File target, int templateFiles) {
+            this.templateFiles = templateFiles;
+            lastUpdateNanos = System.nanoTime();
+        }
+
+        @Override
+        public void fileFinished(File template, long nanos) {
+            finishedFiles.incrementAndGet();
+            update(false);
+        }
+
+        @Override
+        public void outputUnchanged(File template, File output, long nanos) {
+            unchanged.incrementAndGet();
+        }
+
+        @Override
+        public void outputWritten(File template, File output, boolean fromCache, long nanos) {
+            written.incrementAndGet();
+            if (fromCache) {
+                this.fromCache.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void generationFinished(long nanos) {
+            if (interactive) {
+                update(true);
+                System.err.println();
+            } else {
+                System.err.println(progress());
+            }
+        }
+
+        private synchronized void update(boolean force) {
+            if (!interactive) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!force && now - lastUpdateNanos < UPDATE_INTERVAL_NANOS) {
+                return;
+            }
+            lastUpdateNanos = now;
+            System.err.print("\r" + progress());
+            System.err.flush();
+        }
+
+        private String progress() {
+            String files = templateFiles > 0 ?
+                    finishedFiles.get() + "/" + templateFiles : "" + finishedFiles.get();
+            return "Generating: files " + files + ", " + written.get() + " written (" +
+                    fromCache.get() + " from cache), " + unchanged.get() + " unchanged";
+        }
     }
 
     public static class NoSplitter implements IParameterSplitter {
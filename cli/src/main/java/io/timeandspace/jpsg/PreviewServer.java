@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+
+/**
+ * Serves {@link Generator#preview} requests read from the standard input, for IDE plugins which
+ * keep the CLI process running to preview templates while they are edited. Requests and responses
+ * are a header line of tab-separated fields followed by UTF-8 content of the length given in the
+ * header, in bytes:
+ *
+ * <pre>
+ * preview TEMPLATE_PATH TARGET LENGTH  (TARGET is a class name or a file name, e. g. LongDoubleMap)
+ * TEMPLATE
+ * </pre>
+ * is answered with
+ * <pre>
+ * ok FILE_NAME LENGTH
+ * GENERATED_CONTENT
+ * TEMPLATE_LINE TEMPLATE_LINE ... (zero-based, for every line of the generated content)
+ * </pre>
+ *
+ * and
+ * <pre>
+ * targets TEMPLATE_PATH LENGTH
+ * TEMPLATE
+ * </pre>
+ * is answered with {@code ok COUNT} and the names of the files generated from the template, one
+ * per line. Any failure is answered with {@code error MESSAGE}, with line breaks in the message
+ * escaped as {@code \n}. If the last field of the header is not a length, the content can't be
+ * skipped, so the error ends the session.
+ */
+final class PreviewServer {
+
+    private final Generator generator;
+    private final InputStream in;
+    private final OutputStream out;
+
+    PreviewServer(Generator generator, InputStream in, OutputStream out) {
+        this.generator = generator;
+        this.in = new BufferedInputStream(in);
+        this.out = new BufferedOutputStream(out);
+    }
+
+    void serve() throws IOException {
+        String header;
+        while ((header = readLine()) != null) {
+            if (header.isEmpty()) {
+                continue;
+            }
+            String[] fields = header.split("\t");
+            int length = parseLength(fields[fields.length - 1]);
+            if (length < 0) {
+                writeError("Malformed request, the last field should be the length of the " +
+                        "content: " + header);
+                out.flush();
+                return;
+            }
+            // Read before the request is checked, not to read the content as the next requests
+            String content = readContent(length);
+            try {
+                switch (fields[0]) {
+                    case "preview":
+                        checkFields(fields, 4);
+                        preview(fields[1], fields[2], content);
+                        break;
+                    case "targets":
+                        checkFields(fields, 3);
+                        targets(fields[1], content);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown request: " + fields[0]);
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                writeError(e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+            out.flush();
+        }
+    }
+
+    private void preview(String templatePath, String target, String template) throws IOException {
+        Preview preview = generator.preview(templatePath, template, target);
+        byte[] content = preview.getContent().getBytes(StandardCharsets.UTF_8);
+        writeLine("ok\t" + preview.getFileName() + "\t" + content.length);
+        out.write(content);
+        StringBuilder lines = new StringBuilder();
+        for (int line = 0; line < preview.getLineCount(); line++) {
+            if (line > 0) {
+                lines.append(' ');
+            }
+            lines.append(preview.templateLine(line));
+        }
+        writeLine(lines.toString());
+    }
+
+    private void targets(String templatePath, String template) throws IOException {
+        Map<String, Context> targets = generator.previewTargets(templatePath, template);
+        writeLine("ok\t" + targets.size());
+        for (String fileName : targets.keySet()) {
+            writeLine(fileName);
+        }
+    }
+
+    private static void checkFields(String[] fields, int expected) {
+        if (fields.length != expected) {
+            throw new IllegalArgumentException(
+                    "Expected " + expected + " tab-separated fields in " + fields[0] +
+                            " request, " + fields.length + " given");
+        }
+    }
+
+    private static int parseLength(String field) {
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String readContent(int length) throws IOException {
+        byte[] content = new byte[length];
+        int read = 0;
+        while (read < content.length) {
+            int n = in.read(content, read, content.length - read);
+            if (n < 0) {
+                throw new EOFException("Expected " + content.length + " bytes, " + read + " read");
+            }
+            read += n;
+        }
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString("UTF-8") : null;
+            }
+            line.write(b);
+        }
+        return line.toString("UTF-8").replace("\r", "");
+    }
+
+    private void writeError(String message) throws IOException {
+        writeLine("error\t" + message.replace("\n", "\\n"));
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+
+class CLITest : TempDirTest() {
+
+    private val source = dir.resolve("source")
+    private val target = dir.resolve("target")
+
+    @Test
+    fun testStaleFilesAreNotDeletedWhenPartitionIsMissing() {
+        for (name in listOf("List", "Set", "Queue")) {
+            val file = source.resolve("p/Int$name.java")
+            file.parentFile.mkdirs()
+            file.writeText("/* with int|long elem */\npackage p;\n\npublic class Int$name {}\n")
+        }
+        val manifest = dir.resolve("manifest.txt")
+        generator().setPartition(1, 2).setPartitionManifest(manifest).generate()
+        val outputsOfPresent = readFiles(target).keys
+        generator().setPartition(2, 2).setPartitionManifest(dir.resolve("missing.txt")).generate()
+        val outputsOfMissing = readFiles(target).keys - outputsOfPresent
+        assertFalse(outputsOfMissing.isEmpty())
+
+        val exitCode = CLI.verifyShards(generator(), listOf(manifest.path), true)
+        assertEquals(1, exitCode)
+        for (output in outputsOfMissing) {
+            assertTrue(target.resolve(output).exists(), output)
+        }
+    }
+
+    @Test
+    fun testStaleFilesAreDeletedWhenPartitionsAreComplete() {
+        source.resolve("p").mkdirs()
+        source.resolve("p/IntList.java").writeText(
+                "/* with int|long elem */\npackage p;\n\npublic class IntList {}\n")
+        val manifests = (1..2).map { partition ->
+            val manifest = dir.resolve("$partition.txt")
+            generator().setPartition(partition, 2).setPartitionManifest(manifest).generate()
+            manifest.path
+        }
+        val staleFile = target.resolve("p/IntTree.java")
+        staleFile.writeText("Left from an earlier generation\n")
+
+        assertEquals(0, CLI.verifyShards(generator(), manifests, true))
+        assertFalse(staleFile.exists())
+        assertTrue(target.resolve("p/LongList.java").exists())
+    }
+
+    private fun generator(): Generator {
+        return Generator().setSource(source).setTarget(target)
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+class PreviewServerTest {
+
+    private val template = "/* with int|long elem */\npackage p;\n\npublic class IntBox {}\n"
+
+    @Test
+    fun testInvalidRequestDoesNotDesyncSession() {
+        val response = serve(
+                request("preview\tp/IntBox.java", template) +
+                request("targets\tp/IntBox.java", template))
+        assertEquals(listOf(
+                "error\tExpected 4 tab-separated fields in preview request, 3 given",
+                "ok\t2", "IntBox.java", "LongBox.java"), response.lines().dropLast(1))
+    }
+
+    @Test
+    fun testHeaderWithoutLengthEndsSession() {
+        val response = serve("targets\tp/IntBox.java\n" + template +
+                request("targets\tp/IntBox.java", template))
+        assertEquals(listOf("error\tMalformed request, the last field should be the length " +
+                "of the content: targets\tp/IntBox.java"), response.lines().dropLast(1))
+    }
+
+    private fun request(header: String, content: String): String {
+        return header + "\t" + content.toByteArray(Charsets.UTF_8).size + "\n" + content
+    }
+
+    private fun serve(requests: String): String {
+        val out = ByteArrayOutputStream()
+        PreviewServer(Generator(), ByteArrayInputStream(requests.toByteArray(Charsets.UTF_8)), out)
+                .serve()
+        return out.toString("UTF-8")
+    }
+}
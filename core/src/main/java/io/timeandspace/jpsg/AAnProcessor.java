@@ -16,6 +16,8 @@
 
 package io.timeandspace.jpsg;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,20 +35,35 @@ public final class AAnProcessor extends TemplateProcessor {
         return PRIORITY;
     }
 
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
+    @Override
+    protected List<String> triggerMarkers() {
+        return Arrays.asList("/*a", "//a");
+    }
+
     @Override
     protected void process(StringBuilder builder, Context source, Context target, String template) {
         Matcher articleM = ARTICLE_PATTERN.matcher(template);
-        StringBuffer sb = new StringBuffer();
-        while (articleM.find()) {
-            String textAfterArticle = template.substring(articleM.end());
-            Matcher letterAfterArticle = LETTER_PATTERN.matcher(textAfterArticle);
+        if (!articleM.find()) {
+            postProcess(builder, source, target, template);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        int lastAppendPosition = 0;
+        Matcher letterAfterArticle = LETTER_PATTERN.matcher(template);
+        do {
+            letterAfterArticle.region(articleM.end(), template.length());
             char letter;
             do {
                 if (!letterAfterArticle.find())
                     throw MalformedTemplateException.near(template, articleM.end());
-                letter = textAfterArticle.charAt(letterAfterArticle.start());
-                if (containsAtIndex(textAfterArticle, letterAfterArticle.start(), "code") ||
-                        containsAtIndex(textAfterArticle, letterAfterArticle.start(), "link")) {
+                letter = template.charAt(letterAfterArticle.start());
+                if (containsAtIndex(template, letterAfterArticle.start(), "code") ||
+                        containsAtIndex(template, letterAfterArticle.start(), "link")) {
                     // Skips "ode" or "ink" and finds the next letter.
                     for (int i = 0; i < 3; i++) {
                         letterAfterArticle.find();
@@ -55,10 +72,12 @@ public final class AAnProcessor extends TemplateProcessor {
                     break;
                 }
             } while (true);
+            countMatch();
             String article = isVowel(letter) ? "an" : "a";
-            articleM.appendReplacement(sb, article);
-        }
-        articleM.appendTail(sb);
+            sb.append(template, lastAppendPosition, articleM.start()).append(article);
+            lastAppendPosition = articleM.end();
+        } while (articleM.find());
+        sb.append(template, lastAppendPosition, template.length());
         postProcess(builder, source, target, sb.toString());
     }
 
@@ -20,4 +20,10 @@ import io.timeandspace.jpsg.function.Predicate
 import io.timeandspace.jpsg.function.UnaryOperator
 
 class BitsModifierPostProcessor : PrimitiveTypeModifierPostProcessor(
-        "bits", UnaryOperator { it.bitsType() }, Predicate { dim -> true })
+        "bits", UnaryOperator { it.bitsType() }, Predicate { dim -> true }) {
+
+    /** The configuration is fixed by the class */
+    override fun configurationKey(): String? {
+        return ""
+    }
+}
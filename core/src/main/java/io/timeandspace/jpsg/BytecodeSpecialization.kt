@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Derives class files of generated sources which are equal to other generated sources up to a
+ * consistent renaming of identifiers (e. g. `CharBox` -> `IntBox`) by renaming the names in the
+ * constant pools of their class files. Keywords, including primitive type names, are not renamed,
+ * and derivations which rename string constants or names which may not come from the source are
+ * not supported.
+ */
+internal class BytecodeSpecialization {
+
+    class Derivation(val base: String, val renaming: Map<String, String>)
+
+    companion object {
+        private val IDENTIFIER_OR_NUMBER = Regex("[A-Za-z0-9_]+")
+        private val TYPE_DECLARATION = Regex("\\b(?:class|interface|enum)\\s+([A-Za-z_][\\w]*)")
+        private val CLASS_IN_DESCRIPTOR = Regex("L([\\w/$]+)[;<]")
+
+        private val KEYWORDS = setOf(
+                "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char",
+                "class", "const", "continue", "default", "do", "double", "else", "enum",
+                "extends", "final", "finally", "float", "for", "goto", "if", "implements",
+                "import", "instanceof", "int", "interface", "long", "native", "new", "package",
+                "private", "protected", "public", "return", "short", "static", "strictfp",
+                "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try",
+                "void", "volatile", "while", "true", "false", "null", "var")
+
+        private val RESERVED_NAMES = setOf(
+                "init", "clinit", "Code", "ConstantValue", "StackMapTable", "Exceptions",
+                "InnerClasses", "EnclosingMethod", "Synthetic", "Signature", "SourceFile",
+                "LineNumberTable", "LocalVariableTable", "LocalVariableTypeTable", "Deprecated",
+                "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations",
+                "RuntimeVisibleParameterAnnotations", "RuntimeInvisibleParameterAnnotations",
+                "RuntimeVisibleTypeAnnotations", "RuntimeInvisibleTypeAnnotations",
+                "AnnotationDefault", "BootstrapMethods", "MethodParameters", "Module",
+                "NestHost", "NestMembers", "Record", "PermittedSubclasses")
+
+        fun findDerivations(sources: Map<String, String>): Map<String, Derivation> {
+            val groups = sources.keys.sorted().groupBy { shape(sources[it]!!) }
+            val derivations = HashMap<String, Derivation>()
+            for (group in groups.values) {
+                val base = group[0]
+                if (!base.contains('.'))
+                    // Simple names are not separated from internal names in the default package
+                    continue
+                for (derived in group.subList(1, group.size)) {
+                    val renaming = renaming(sources[base]!!, sources[derived]!!) ?: continue
+                    if (renaming[base.substringAfterLast('.')] ==
+                            derived.substringAfterLast('.')) {
+                        derivations[derived] = Derivation(base, renaming)
+                    }
+                }
+            }
+            return derivations
+        }
+
+        fun validate(derivations: MutableMap<String, Derivation>,
+                     allSources: Map<String, String>) {
+            val declaredTypes = HashMap<String, String>()
+            for ((binaryName, source) in allSources) {
+                TYPE_DECLARATION.findAll(source).forEach {
+                    declaredTypes[it.groupValues[1]] = binaryName
+                }
+            }
+            derivations.entries.removeIf { (_, d) ->
+                d.renaming.keys.any { name ->
+                    name in RESERVED_NAMES ||
+                            (name[0].isUpperCase() && name !in declaredTypes)
+                }
+            }
+            var changed = true
+            while (changed) {
+                changed = false
+                val it = derivations.entries.iterator()
+                while (it.hasNext()) {
+                    val (derived, d) = it.next()
+                    val sound = d.renaming.all { (from, to) ->
+                        if (!from[0].isUpperCase())
+                            return@all true
+                        val fromSource = declaredTypes[from]!!
+                        val toSource = declaredTypes[to] ?: return@all false
+                        if (fromSource == d.base && toSource == derived)
+                            return@all true
+                        val other = derivations[toSource]
+                        other != null && other.base == fromSource &&
+                                consistent(d.renaming, other.renaming)
+                    }
+                    if (!sound) {
+                        it.remove()
+                        changed = true
+                    }
+                }
+            }
+        }
+
+        private fun consistent(a: Map<String, String>, b: Map<String, String>): Boolean {
+            return a.all { (from, to) -> b[from]?.equals(to) ?: true } &&
+                    b.all { (from, to) -> a[from]?.equals(to) ?: true }
+        }
+
+        private fun shape(source: String): String {
+            return IDENTIFIER_OR_NUMBER.replace(source) {
+                val token = it.value
+                if (token[0].isDigit() || token in KEYWORDS) token else "\u0000"
+            }
+        }
+
+        private fun renaming(base: String, derived: String): Map<String, String>? {
+            val baseTokens = IDENTIFIER_OR_NUMBER.findAll(base).map { it.value }.toList()
+            val derivedTokens = IDENTIFIER_OR_NUMBER.findAll(derived).map { it.value }.toList()
+            if (baseTokens.size != derivedTokens.size)
+                return null
+            val renaming = HashMap<String, String>()
+            val reverse = HashMap<String, String>()
+            for (i in baseTokens.indices) {
+                val from = baseTokens[i]
+                val to = derivedTokens[i]
+                if ((renaming.putIfAbsent(from, to) ?: to) != to ||
+                        (reverse.putIfAbsent(to, from) ?: from) != from) {
+                    return null
+                }
+            }
+            renaming.entries.removeIf { (from, to) -> from == to }
+            return renaming
+        }
+
+        /** Returns `null` if the renaming is not sound for the class file */
+        fun rename(classFile: ByteArray, renaming: Map<String, String>,
+                   generatedClasses: Set<String>): ByteArray? {
+            val buffer = ByteBuffer.wrap(classFile)
+            val out = ByteArrayOutputStream(classFile.size + 64)
+            val data = DataOutputStream(out)
+            data.writeInt(buffer.int) // magic
+            data.writeInt(buffer.int) // minor and major versions
+            val count = buffer.short.toInt() and 0xFFFF
+            data.writeShort(count)
+            // The constant pool is read first to find which Utf8 entries are string constants
+            val utf8 = arrayOfNulls<String>(count)
+            val stringIndexes = HashSet<Int>()
+            val tags = IntArray(count)
+            // The first and the second indexes referenced by Class, NameAndType, member reference
+            // and InvokeDynamic entries
+            val refs1 = IntArray(count)
+            val refs2 = IntArray(count)
+            // Indexes and start positions of entries
+            val entries = ArrayList<Pair<Int, Int>>()
+            var i = 1
+            while (i < count) {
+                entries.add(Pair(i, buffer.position()))
+                val tag = buffer.get().toInt()
+                tags[i] = tag
+                when (tag) {
+                    1 -> {
+                        val bytes = ByteArray(buffer.short.toInt() and 0xFFFF)
+                        buffer.get(bytes)
+                        // Renamed identifiers are ASCII, other bytes of modified UTF-8 are kept
+                        utf8[i] = String(bytes, Charsets.ISO_8859_1)
+                    }
+                    8 -> stringIndexes.add(buffer.short.toInt() and 0xFFFF)
+                    7 -> refs1[i] = buffer.short.toInt() and 0xFFFF
+                    16, 19, 20 -> buffer.short
+                    9, 10, 11, 12, 18 -> {
+                        refs1[i] = buffer.short.toInt() and 0xFFFF
+                        refs2[i] = buffer.short.toInt() and 0xFFFF
+                    }
+                    3, 4, 17 -> buffer.int
+                    5, 6 -> {
+                        buffer.long
+                        // 8-byte constants take two entries
+                        i++
+                    }
+                    15 -> {
+                        buffer.get()
+                        buffer.short
+                    }
+                    else -> return null
+                }
+                i++
+            }
+            val constantPoolEnd = buffer.position()
+            val notRenamed = namesNotFromSource(tags, refs1, refs2, utf8, generatedClasses)
+            if (renaming.keys.any { it in notRenamed })
+                return null
+            for ((entry, indexAndPosition) in entries.withIndex()) {
+                val (index, position) = indexAndPosition
+                val s = utf8[index]
+                if (s == null) {
+                    val end = if (entry + 1 < entries.size) entries[entry + 1].second
+                            else constantPoolEnd
+                    out.write(classFile, position, end - position)
+                    continue
+                }
+                val renamed = IDENTIFIER_OR_NUMBER.replace(s) { renaming[it.value] ?: it.value }
+                if (index in stringIndexes && renamed != s)
+                    return null
+                val bytes = renamed.toByteArray(Charsets.ISO_8859_1)
+                data.writeByte(1)
+                data.writeShort(bytes.size)
+                data.write(bytes)
+            }
+            out.write(classFile, constantPoolEnd, classFile.size - constantPoolEnd)
+            return out.toByteArray()
+        }
+
+        private fun namesNotFromSource(tags: IntArray, refs1: IntArray, refs2: IntArray,
+                                       utf8: Array<String?>, generatedClasses: Set<String>):
+                Set<String> {
+            val names = HashSet<String>()
+            fun addClassName(internalName: String) {
+                val lastSlash = internalName.lastIndexOf('/')
+                val topLevel = internalName.substringBefore('$').replace('/', '.')
+                // The package of generated classes too
+                val notRenamed =
+                        if (topLevel in generatedClasses) internalName.substring(0, lastSlash + 1)
+                        else internalName
+                IDENTIFIER_OR_NUMBER.findAll(notRenamed).mapTo(names) { it.value }
+            }
+            for (i in tags.indices) {
+                when (tags[i]) {
+                    // Class names and descriptors in all Utf8 entries, e. g. of field and method
+                    // descriptors, signatures and array classes
+                    1 -> CLASS_IN_DESCRIPTOR.findAll(utf8[i]!!).forEach {
+                        addClassName(it.groupValues[1])
+                    }
+                    7 -> {
+                        val name = utf8[refs1[i]]!!
+                        if (!name.startsWith("["))
+                            addClassName(name)
+                    }
+                    9, 10, 11 -> {
+                        val owner = utf8[refs1[refs1[i]]]!!.substringAfterLast('[')
+                                .removePrefix("L").removeSuffix(";")
+                        if (owner.substringBefore('$').replace('/', '.') !in generatedClasses)
+                            names.add(utf8[refs1[refs2[i]]]!!)
+                    }
+                    // The name of the method implemented by a lambda or a method reference
+                    18 -> names.add(utf8[refs1[refs2[i]]]!!)
+                }
+            }
+            return names
+        }
+
+        fun renameClass(binaryName: String, renaming: Map<String, String>): String {
+            return IDENTIFIER_OR_NUMBER.replace(binaryName) { renaming[it.value] ?: it.value }
+        }
+    }
+}
@@ -34,6 +34,7 @@ class CheckingMatcher private constructor(
         if (!targetMatcher.find(start) || targetMatcher.start() != start) {
             throw MalformedTemplateException.near(input, start)
         }
+        Generator.currentMetrics()?.countMatch()
         return true
     }
 
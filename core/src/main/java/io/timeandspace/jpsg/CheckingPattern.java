@@ -36,8 +36,8 @@ public final class CheckingPattern {
     private final Pattern checkingPattern, targetPattern;
 
     private CheckingPattern(String checkingRegex, String targetRegex, int flags) {
-        checkingPattern = Pattern.compile(checkingRegex, flags);
-        targetPattern = Pattern.compile(targetRegex, flags);
+        checkingPattern = PatternCache.compile(checkingRegex, flags);
+        targetPattern = PatternCache.compile(targetRegex, flags);
     }
 
     public CheckingMatcher matcher(CharSequence input) {
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import io.timeandspace.jpsg.Generator.Companion.getBlockGroup
+import io.timeandspace.jpsg.GeneratorConstants.*
+import io.timeandspace.jpsg.MalformedTemplateException.Companion.near
+
+/**
+ * The structure of `/* if */` and `/* with */` blocks of a template, found once and rendered for
+ * every context. Conditions are parsed lazily, so that malformed templates are reported in the
+ * same contexts as without caching.
+ */
+internal class CompiledBlocks private constructor(
+        val template: String, val parts: List<BlockPart>) {
+
+    abstract class BlockPart
+
+    class LinearBlock(val start: Int, val end: Int) : BlockPart()
+
+    class IfBlock(val start: Int, val branches: List<Branch>, val closed: Boolean) : BlockPart() {
+        class Branch(val condition: String, val conditionPos: Int,
+                     private val template: String, val start: Int, val end: Int) {
+            @Volatile var parsedCondition: Condition? = null
+            private val body = LazyBlocks(template, start, end)
+            fun body(): CompiledBlocks = body.get()
+        }
+    }
+
+    class WithBlock(val dimensions: Dimensions, template: String, start: Int, end: Int) :
+            BlockPart() {
+        val contexts: List<Context> by lazy { dimensions.generateContexts() }
+        private val body = LazyBlocks(template, start, end)
+        fun body(): CompiledBlocks = body.get()
+    }
+
+    class MalformedBlock(val exception: MalformedTemplateException) : BlockPart()
+
+    private class LazyBlocks(val template: String, val start: Int, val end: Int) {
+        @Volatile private var compiled: CompiledBlocks? = null
+
+        fun get(): CompiledBlocks {
+            // Racy, but compile() is idempotent
+            var c = compiled
+            if (c == null) {
+                c = compile(template.substring(start, end))
+                compiled = c
+            }
+            return c
+        }
+    }
+
+    companion object {
+
+        fun compile(template: String): CompiledBlocks {
+            val parts = ArrayList<BlockPart>()
+            try {
+                compileParts(template, parts)
+            } catch (e: MalformedTemplateException) {
+                parts.add(MalformedBlock(e))
+            }
+            return CompiledBlocks(template, parts)
+        }
+
+        private fun compileParts(template: String, parts: MutableList<BlockPart>) {
+            val blockStartMatcher = ANY_BLOCK_PART_P.matcher(template)
+            var prevBlockEndPos = 0
+            blockSearch@ while (blockStartMatcher.find()) {
+                val blockDefPos = blockStartMatcher.start()
+                parts.add(LinearBlock(prevBlockEndPos, blockDefPos))
+                val blockStart = blockStartMatcher.group()
+                if (COND_START_P.matcher(blockStart).matches()) {
+                    val branches = ArrayList<IfBlock.Branch>()
+                    var branchCondition = getBlockGroup(blockStart, COND_PART_BLOCK_P, "condition")
+                    var branchConditionPos = blockDefPos
+                    var branchStartPos = blockStartMatcher.end()
+                    var nest = 0
+                    val condM = COND_PART_P.matcher(template)
+                    condM.region(branchStartPos, template.length)
+                    while (condM.find()) {
+                        val condPart = condM.group()
+                        if (COND_START_P.matcher(condPart).matches()) {
+                            nest++
+                        } else if (nest != 0) {
+                            if (COND_END_P.matcher(condPart).matches()) {
+                                nest--
+                            }
+                            // no special processing of nested `elif` branches
+                        } else {
+                            branches.add(IfBlock.Branch(branchCondition, branchConditionPos,
+                                    template, branchStartPos, condM.start()))
+                            if (COND_END_P.matcher(condPart).matches()) {
+                                parts.add(IfBlock(blockDefPos, branches, true))
+                                prevBlockEndPos = condM.end()
+                                blockStartMatcher.region(prevBlockEndPos, template.length)
+                                continue@blockSearch
+                            } else {
+                                // `elif` branch
+                                branchCondition =
+                                        getBlockGroup(condPart, COND_PART_BLOCK_P, "condition")
+                                branchConditionPos = condM.start()
+                                branchStartPos = condM.end()
+                            }
+                        }
+                    }
+                    // The last branch is not closed. Its condition is still parsed on rendering
+                    // before reporting that the block is not closed.
+                    branches.add(IfBlock.Branch(branchCondition, branchConditionPos,
+                            template, branchStartPos, branchStartPos))
+                    parts.add(IfBlock(blockDefPos, branches, false))
+                    return
+                } else {
+                    // `with` block
+                    val contextM = CONTEXT_START_P.matcher(blockStart)
+                    if (contextM.matches()) {
+                        val additionalDims = Generator.checkingDimensionsParser.parseForContext(
+                                getBlockGroup(contextM.group(), CONTEXT_START_BLOCK_P,
+                                        "dimensions"))
+                        val blockStartPos = blockStartMatcher.end()
+                        var nest = 0
+                        val contextPartM = CONTEXT_PART_P.matcher(template)
+                        contextPartM.region(blockStartPos, template.length)
+                        while (contextPartM.find()) {
+                            val contextPart = contextPartM.group()
+                            if (CONTEXT_END_P.matcher(contextPart).matches()) {
+                                if (nest == 0) {
+                                    parts.add(WithBlock(additionalDims, template,
+                                            blockStartPos, contextPartM.start()))
+                                    prevBlockEndPos = contextPartM.end()
+                                    blockStartMatcher.region(prevBlockEndPos, template.length)
+                                    continue@blockSearch
+                                } else {
+                                    // nesting `with` end
+                                    nest--
+                                }
+                            } else {
+                                // nesting `with` start
+                                nest++
+                            }
+                        }
+                        // A `with` block which is not closed is left in the template as is (the
+                        // linear block before it is repeated, as before the block structure was
+                        // cached)
+                    } else {
+                        parts.add(MalformedBlock(near(template, blockDefPos,
+                                "Block end or `elif` branch without start")))
+                        return
+                    }
+                }
+            }
+            parts.add(LinearBlock(prevBlockEndPos, template.length))
+        }
+    }
+}
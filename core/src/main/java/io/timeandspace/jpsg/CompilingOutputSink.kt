@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.URI
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import javax.tools.Diagnostic
+import javax.tools.DiagnosticCollector
+import javax.tools.FileObject
+import javax.tools.ForwardingJavaFileManager
+import javax.tools.JavaCompiler
+import javax.tools.JavaFileManager
+import javax.tools.JavaFileObject
+import javax.tools.SimpleJavaFileObject
+import javax.tools.StandardJavaFileManager
+import javax.tools.StandardLocation
+import javax.tools.ToolProvider
+
+/**
+ * Compiles generated sources in process with the system [JavaCompiler], in batches per package as
+ * soon as the package is generated.
+ *
+ * @param sourcesDir the directory to write generated sources to, or `null` not to write them
+ * @param manifest the file listing the class files and sources written by the previous [commit],
+ * which are deleted if they are not written again. Other files in [classesDir] and [sourcesDir]
+ * are never deleted. `null` not to delete anything
+ */
+class CompilingOutputSink @JvmOverloads constructor(
+        val classesDir: File,
+        val classpath: List<File>,
+        val options: List<String>,
+        val sourcesDir: File?,
+        val bytecodeSpecialization: Boolean = false,
+        val manifest: File? = null) : OutputSink, Closeable {
+
+    private val compiler: JavaCompiler = ToolProvider.getSystemJavaCompiler()
+            ?: throw IllegalStateException(
+                    "Java compiler is not available, generated sources could be compiled only " +
+                            "when JPSG is run on a JDK")
+    private val fileManager = MemoryFileManager(
+            compiler.getStandardFileManager(null, Locale.ROOT, Charsets.UTF_8))
+    private val pending = ConcurrentHashMap<String, GeneratedSource>()
+    private val compiled = ConcurrentHashMap<String, ByteArray>()
+    private val sources = ConcurrentHashMap<String, String>()
+    private val derivable = ConcurrentHashMap<String, GeneratedSource>()
+    private val derivations = ConcurrentHashMap<String, BytecodeSpecialization.Derivation>()
+    private val writtenSources: MutableSet<String> = ConcurrentHashMap.newKeySet()
+    private val compilerThread = Executors.newSingleThreadExecutor { r ->
+        val thread = Thread(r, "jpsg-compiler")
+        thread.isDaemon = true
+        thread
+    }
+    private val batches = ArrayList<Future<*>>()
+
+    init {
+        fileManager.setLocation(StandardLocation.CLASS_PATH, classpath)
+    }
+
+    @Throws(IOException::class)
+    override fun write(path: String, content: String) {
+        if (sourcesDir != null) {
+            writeIfChanged(sourcesDir.resolve(path), content.toByteArray(Charsets.UTF_8))
+            writtenSources.add(path)
+        }
+        if (!path.endsWith(JavaFileObject.Kind.SOURCE.extension)) {
+            if (sourcesDir == null) {
+                log.debug("{} is not a Java source, not written", path)
+            }
+            return
+        }
+        val source = GeneratedSource(path, content)
+        if (bytecodeSpecialization) {
+            sources[source.binaryName] = content
+        }
+        pending[source.binaryName] = source
+    }
+
+    override fun directoryFinished(path: String) {
+        val packageName = path.replace('/', '.')
+        var batch = pending.values.filter { it.packageName == packageName }
+        if (bytecodeSpecialization && batch.size > 1) {
+            val packageDerivations = BytecodeSpecialization.findDerivations(
+                    batch.associate { Pair(it.binaryName, it.content) })
+            for (derived in packageDerivations.keys) {
+                // Added to derivable first, so that the source is always on the source path
+                derivable[derived] = pending[derived]!!
+                pending.remove(derived)
+            }
+            derivations.putAll(packageDerivations)
+            batch = batch.filter { it.binaryName !in packageDerivations }
+        }
+        if (batch.isEmpty())
+            return
+        synchronized(batches) {
+            batches.add(compilerThread.submit {
+                val diagnostics = compile(batch)
+                if (diagnostics != null) {
+                    log.debug("Package {} is not compiled separately: {}", packageName,
+                            diagnostics.firstOrNull())
+                }
+            })
+        }
+    }
+
+    /** @throws IllegalStateException if the generated sources fail to compile */
+    @Throws(IOException::class)
+    fun commit() {
+        synchronized(batches) {
+            for (batch in batches) {
+                try {
+                    batch.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+        }
+        compilePending()
+        if (derivable.isNotEmpty()) {
+            derive()
+            // Sources which could not be derived
+            pending.putAll(derivable)
+            derivable.clear()
+            compilePending()
+        }
+        val outputs = TreeSet<String>()
+        for ((binaryName, bytes) in compiled) {
+            val classPath = binaryName.replace('.', '/') + ".class"
+            writeIfChanged(classesDir.resolve(classPath), bytes)
+            outputs.add(CLASSES_PREFIX + classPath)
+        }
+        log.debug("Compiled {} classes to {}", compiled.size, classesDir)
+        if (manifest != null) {
+            writtenSources.mapTo(outputs) { SOURCES_PREFIX + it }
+            deleteStaleOutputs(manifest, outputs)
+            manifest.absoluteFile.parentFile.mkdirs()
+            manifest.writeText(outputs.joinToString("") { it + "\n" })
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun deleteStaleOutputs(manifest: File, outputs: Set<String>) {
+        if (!manifest.isFile)
+            return
+        var deleted = 0
+        for (output in manifest.readLines()) {
+            if (output.isEmpty() || output in outputs)
+                continue
+            val root = if (output.startsWith(CLASSES_PREFIX)) classesDir else sourcesDir ?: continue
+            var file = root.resolve(output.substringAfter('/'))
+            if (!Files.deleteIfExists(file.toPath()))
+                continue
+            deleted++
+            // Directories of packages which are no longer generated
+            file = file.parentFile
+            while (file != root && file.list()?.isEmpty() == true) {
+                Files.delete(file.toPath())
+                file = file.parentFile
+            }
+        }
+        if (deleted > 0) {
+            log.debug("Deleted {} stale outputs listed in {}", deleted, manifest)
+        }
+    }
+
+    private fun compilePending() {
+        if (pending.isNotEmpty()) {
+            val diagnostics = compile(ArrayList(pending.values))
+            if (diagnostics != null) {
+                throw IllegalStateException(
+                        "Generated sources failed to compile:\n" + diagnostics.joinToString("\n"))
+            }
+        }
+    }
+
+    private fun derive() {
+        val derived = HashMap<String, ByteArray>()
+        do {
+            BytecodeSpecialization.validate(derivations, sources)
+            derived.clear()
+            val unsupported = derivations.filter { (_, d) ->
+                val baseClasses =
+                        compiled.filterKeys { it == d.base || it.startsWith(d.base + "$") }
+                if (baseClasses.isEmpty())
+                    return@filter true
+                baseClasses.any { (binaryName, bytes) ->
+                    val renamed = BytecodeSpecialization.rename(bytes, d.renaming, sources.keys)
+                            ?: return@any true
+                    derived[BytecodeSpecialization.renameClass(binaryName, d.renaming)] = renamed
+                    false
+                }
+            }
+            unsupported.keys.forEach { derivations.remove(it) }
+        } while (unsupported.isNotEmpty())
+        compiled.putAll(derived)
+        derivations.keys.forEach { derivable.remove(it) }
+        log.debug("Derived {} classes from the class files of other generated sources",
+                derived.size)
+    }
+
+    override fun close() {
+        compilerThread.shutdownNow()
+        fileManager.close()
+    }
+
+    private fun compile(sources: List<GeneratedSource>): List<Diagnostic<out JavaFileObject>>? {
+        val diagnostics = DiagnosticCollector<JavaFileObject>()
+        // Sources which are only referenced from the compiled sources are compiled in their own
+        // batches
+        val compilerOptions = listOf("-implicit:none") + options
+        val task = compiler.getTask(
+                null, fileManager, diagnostics, compilerOptions, null, sources)
+        fileManager.batchOutput.clear()
+        if (!task.call()) {
+            return diagnostics.diagnostics.filter { it.kind == Diagnostic.Kind.ERROR }
+        }
+        compiled.putAll(fileManager.batchOutput)
+        for (source in sources) {
+            pending.remove(source.binaryName)
+        }
+        return null
+    }
+
+    @Throws(IOException::class)
+    private fun writeIfChanged(file: File, bytes: ByteArray) {
+        if (file.isFile && file.length() == bytes.size.toLong() &&
+                Arrays.equals(file.readBytes(), bytes)) {
+            return
+        }
+        file.parentFile.mkdirs()
+        file.writeBytes(bytes)
+    }
+
+    private class GeneratedSource(path: String, val content: String) :
+            SimpleJavaFileObject(URI("string", null, "/$path", null), JavaFileObject.Kind.SOURCE) {
+        val binaryName = path.removeSuffix(kind.extension).replace('/', '.')
+        val packageName = binaryName.substringBeforeLast('.', "")
+
+        override fun getCharContent(ignoreEncodingErrors: Boolean): CharSequence = content
+    }
+
+    private class CompiledClass(val binaryName: String, private val bytes: ByteArray) :
+            SimpleJavaFileObject(URI("bytes", null, "/$binaryName", null),
+                    JavaFileObject.Kind.CLASS) {
+        val packageName = binaryName.substringBeforeLast('.', "")
+
+        override fun openInputStream(): InputStream = bytes.inputStream()
+    }
+
+    private class ClassOutput(
+            val binaryName: String, val batchOutput: MutableMap<String, ByteArray>) :
+            SimpleJavaFileObject(URI("bytes", null, "/$binaryName", null),
+                    JavaFileObject.Kind.CLASS) {
+
+        override fun openOutputStream(): OutputStream = object : ByteArrayOutputStream() {
+            override fun close() {
+                batchOutput[binaryName] = toByteArray()
+            }
+        }
+    }
+
+    private inner class MemoryFileManager(fileManager: StandardJavaFileManager) :
+            ForwardingJavaFileManager<StandardJavaFileManager>(fileManager) {
+
+        val batchOutput = HashMap<String, ByteArray>()
+
+        fun setLocation(location: JavaFileManager.Location, files: Iterable<File>) {
+            fileManager.setLocation(location, files)
+        }
+
+        override fun hasLocation(location: JavaFileManager.Location): Boolean {
+            // Otherwise javac looks for sources on the class path
+            return location == StandardLocation.SOURCE_PATH || super.hasLocation(location)
+        }
+
+        override fun list(location: JavaFileManager.Location, packageName: String,
+                          kinds: Set<JavaFileObject.Kind>, recurse: Boolean):
+                Iterable<JavaFileObject> {
+            val files = ArrayList<JavaFileObject>()
+            super.list(location, packageName, kinds, recurse).forEach { files.add(it) }
+            fun inPackage(p: String) =
+                    p == packageName || (recurse && p.startsWith("$packageName."))
+            if (location == StandardLocation.SOURCE_PATH &&
+                    kinds.contains(JavaFileObject.Kind.SOURCE)) {
+                pending.values.filterTo(files) { inPackage(it.packageName) }
+                derivable.values.filterTo(files) { inPackage(it.packageName) }
+            }
+            if (location == StandardLocation.CLASS_PATH &&
+                    kinds.contains(JavaFileObject.Kind.CLASS)) {
+                for ((binaryName, bytes) in compiled) {
+                    val c = CompiledClass(binaryName, bytes)
+                    if (inPackage(c.packageName))
+                        files.add(c)
+                }
+            }
+            return files
+        }
+
+        override fun inferBinaryName(location: JavaFileManager.Location, file: JavaFileObject):
+                String? {
+            return when (file) {
+                is GeneratedSource -> file.binaryName
+                is CompiledClass -> file.binaryName
+                else -> super.inferBinaryName(location, file)
+            }
+        }
+
+        override fun isSameFile(a: FileObject, b: FileObject): Boolean {
+            // The standard file manager doesn't accept in-memory files
+            if (a is SimpleJavaFileObject || b is SimpleJavaFileObject)
+                return a == b
+            return super.isSameFile(a, b)
+        }
+
+        override fun getJavaFileForOutput(location: JavaFileManager.Location, className: String,
+                                          kind: JavaFileObject.Kind, sibling: FileObject?):
+                JavaFileObject {
+            if (location == StandardLocation.CLASS_OUTPUT && kind == JavaFileObject.Kind.CLASS) {
+                return ClassOutput(className, batchOutput)
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling)
+        }
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(CompilingOutputSink::class.java)
+        private const val CLASSES_PREFIX = "classes/"
+        private const val SOURCES_PREFIX = "sources/"
+    }
+}
@@ -39,10 +39,13 @@ import io.timeandspace.jpsg.RegexpUtils.JAVA_ID_OR_CONST
 class ConstProcessor : TemplateProcessor() {
 
     override fun process(builder: StringBuilder, source: Context, target: Context, template: String) {
-        var template = template
         val valueM = CONST_PATTERN.matcher(template)
+        if (!valueM.find()) {
+            postProcess(builder, source, target, template)
+            return
+        }
         val sb = StringBuilder()
-        while (valueM.find()) {
+        do {
             val dim = valueM.group("dim")
             val option = target.getOption(dim)
             if (option != null) {
@@ -73,16 +76,23 @@ class ConstProcessor : TemplateProcessor() {
                 throw MalformedTemplateException.near(template, valueM.start(),
                         "Nonexistent dimension: $dim, available dims: $target")
             }
-        }
+        } while (valueM.find())
         valueM.appendTail(sb)
-        template = sb.toString()
-        postProcess(builder, source, target, template)
+        postProcess(builder, source, target, sb.toString())
     }
 
     override fun priority(): Int {
         return PRIORITY
     }
 
+    override fun configurationKey(): String? {
+        return ""
+    }
+
+    override fun triggerMarkers(): List<String> {
+        return listOf("const")
+    }
+
     companion object {
         // after option processor because constant "(char) 0" is generated
         const val PRIORITY = OptionProcessor.PRIORITY - 10
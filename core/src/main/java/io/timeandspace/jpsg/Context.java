@@ -67,6 +67,10 @@ public final class Context implements Iterable<Map.Entry<String, Option>> {
         return options.get(dim);
     }
 
+    Set<String> dimensions() {
+        return Collections.unmodifiableSet(options.keySet());
+    }
+
 
     @Override
     public String toString() {
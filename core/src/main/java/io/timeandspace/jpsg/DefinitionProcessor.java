@@ -19,8 +19,11 @@ package io.timeandspace.jpsg;
 import org.intellij.lang.annotations.RegExp;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import static java.util.regex.Pattern.DOTALL;
@@ -102,7 +105,8 @@ public final class DefinitionProcessor extends TemplateProcessor {
             }
             // Replace all occurrences of param, literally, not as regex. Respect word boundaries.
             String paramRegex = "\\b" + Pattern.quote(param) + "\\b";
-            return bodyWithoutNestedDefinitions.replaceAll(paramRegex, argument);
+            return PatternCache.compile(paramRegex).matcher(bodyWithoutNestedDefinitions)
+                    .replaceAll(argument);
         }
     }
 
@@ -113,6 +117,17 @@ public final class DefinitionProcessor extends TemplateProcessor {
         return PRIORITY;
     }
 
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
+    @Override
+    protected List<String> triggerMarkers() {
+        // All definitions except the default "comment" one are declared with `define`
+        return Arrays.asList("define", "comment");
+    }
+
     @Override
     protected void process(StringBuilder builder, Context source, Context target, String template) {
         CheckingMatcher matcher = DEF_P.matcher(template);
@@ -128,7 +143,16 @@ public final class DefinitionProcessor extends TemplateProcessor {
             matcher.appendSimpleReplacement(sb, "");
         }
         matcher.appendTail(sb);
-        String withoutDefinitions = replaceDefinitions(definitions, source, target, sb.toString());
+        Map<String, String> expandedBodies = new HashMap<>();
+        Definition className = definitions.get("ClassName");
+        if (className != null) {
+            String expandedClassName = expandBody(definitions, className, source, target,
+                    expandedBodies);
+            Generator.setRedefinedClassName(
+                    postGenerate(source, target, expandedClassName).trim());
+        }
+        String withoutDefinitions = replaceDefinitions(definitions, source, target, sb.toString(),
+                expandedBodies);
         postProcess(builder, source, target, withoutDefinitions);
     }
 
@@ -138,37 +162,55 @@ public final class DefinitionProcessor extends TemplateProcessor {
         return definitions;
     }
 
+    /**
+     * Bodies of definitions are expanded only when a use is found, and only once for the same set
+     * of definitions: eager expansion took factorial time in the number of definitions.
+     */
     private String replaceDefinitions(Map<String, Definition> definitions,
-            Context source, Context target, String template) {
+            Context source, Context target, String template, Map<String, String> expandedBodies) {
         for (Map.Entry<String, Definition> e : definitions.entrySet()) {
             String defName = e.getKey();
             Definition definition = e.getValue();
 
-            String bodyWithoutNestedDefinitions = replaceDefinitions(
-                    without(definitions, defName), source, target, definition.body);
-            if (defName.equals("ClassName")) {
-                // ClassName is guaranteed to not have a parameter, therefore
-                // bodyWithoutNestedDefinitions doesn't need to be passed to replaceParameter()
-                // method, as below.
-                String className =
-                        postGenerate(source, target, bodyWithoutNestedDefinitions).trim();
-                Generator.setRedefinedClassName(className);
-            }
-
             CheckingPattern defUsePattern = makeDefinitionUsePattern(defName);
             CheckingMatcher defUseMatcher = defUsePattern.matcher(template);
+            if (!defUseMatcher.find()) {
+                continue;
+            }
+            String bodyWithoutNestedDefinitions =
+                    expandBody(definitions, definition, source, target, expandedBodies);
             StringBuilder sb = new StringBuilder();
-            while (defUseMatcher.find()) {
+            do {
                 String replacement = definition.replaceParameter(
                         bodyWithoutNestedDefinitions, template, defUseMatcher);
                 defUseMatcher.appendSimpleReplacement(sb, replacement);
-            }
+            } while (defUseMatcher.find());
             defUseMatcher.appendTail(sb);
             template = sb.toString();
         }
         return template;
     }
 
+    private String expandBody(Map<String, Definition> definitions, Definition definition,
+            Context source, Context target, Map<String, String> expandedBodies) {
+        String key = expansionKey(definitions, definition.name);
+        String expanded = expandedBodies.get(key);
+        if (expanded == null) {
+            expanded = replaceDefinitions(without(definitions, definition.name), source, target,
+                    definition.body, expandedBodies);
+            expandedBodies.put(key, expanded);
+        }
+        return expanded;
+    }
+
+    private static String expansionKey(Map<String, Definition> definitions, String defName) {
+        StringBuilder key = new StringBuilder(defName);
+        for (String name : new TreeSet<>(definitions.keySet())) {
+            key.append(' ').append(name);
+        }
+        return key.toString();
+    }
+
     private Map<String, Definition> without(Map<String, Definition> definitions, String defName) {
         Map<String, Definition> definitionsWithout = new HashMap<>(definitions);
         definitionsWithout.remove(defName);
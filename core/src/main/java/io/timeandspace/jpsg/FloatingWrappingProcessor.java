@@ -17,7 +17,9 @@
 package io.timeandspace.jpsg;
 
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public final class FloatingWrappingProcessor extends TemplateProcessor {
@@ -39,11 +41,26 @@ public final class FloatingWrappingProcessor extends TemplateProcessor {
         opsToDoubleMethods.put("unwrapRaw", "doubleToRawLongBits");
     }
 
+    @Override
+    protected List<String> triggerMarkers() {
+        // Also a part of "unwrap" and "unwrapRaw"
+        return Collections.singletonList("wrap");
+    }
+
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
     @Override
     protected void process(StringBuilder builder, Context source, Context target, String template) {
-        StringBuilder sb = new StringBuilder();
         CheckingMatcher m = WRAPPING_P.matcher(template);
-        while (m.find()) {
+        if (!m.find()) {
+            postProcess(builder, source, target, template);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        do {
             String body = m.group(m.group("closed") != null ? "closedBody" : "openBody");
             Option targetType = target.getOption(m.group("dim"));
             String repl = body;
@@ -53,7 +70,7 @@ public final class FloatingWrappingProcessor extends TemplateProcessor {
                 repl = "Double." + opsToDoubleMethods.get(m.group("op")) + "(" + repl + ")";
             }
             m.appendSimpleReplacement(sb, repl);
-        }
+        } while (m.find());
         m.appendTail(sb);
         postProcess(builder, source, target, sb.toString());
     }
@@ -26,6 +26,15 @@ class FunctionProcessor : TemplateProcessor() {
         return PRIORITY
     }
 
+    override fun configurationKey(): String? {
+        return ""
+    }
+
+    override fun triggerMarkers(): List<String> {
+        // The ends of /*f*/ and /*ef*/ markers
+        return listOf("f*/", "f//")
+    }
+
     override fun process(sb: StringBuilder, source: Context, target: Context, template: String) {
         val titleToDim = HashMap<String, String>()
         for (e in source) {
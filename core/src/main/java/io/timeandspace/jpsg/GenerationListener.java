@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.timeandspace.jpsg;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+
+
+/**
+ * Callbacks of the generation lifecycle, see {@link Generator#addListener}. Callbacks may be called
+ * concurrently from different threads. Durations are in nanoseconds.
+ */
+public interface GenerationListener {
+
+    enum FilterReason {
+        CONFIGURATION,
+        FILE_CONDITION,
+        UNREACHABLE,
+        COLD,
+        PARTITION
+    }
+
+    /**
+     * @param templateFiles the number of template files in the source, or -1 if the source is a
+     * single file
+     */
+    default void generationStarted(@Nullable File source, @Nullable File target,
+            int templateFiles) {}
+
+    default void generationFinished(long nanos) {}
+
+    default void fileStarted(File template) {}
+
+    default void fileFinished(File template, long nanos) {}
+
+    default void contextFiltered(File template, Context target, FilterReason reason) {}
+
+    default void contextGenerated(File template, Context target, long nanos) {}
+
+    /** Called when the output has the same content as the existing file, which is not written */
+    default void outputUnchanged(File template, File output, long nanos) {}
+
+    default void outputWritten(File template, File output, boolean fromCache, long nanos) {}
+
+    default void error(File template, Exception e) {}
+
+    /** Polled before each template file and context, {@code true} cancels the generation */
+    default boolean isCancelled() {
+        return false;
+    }
+}
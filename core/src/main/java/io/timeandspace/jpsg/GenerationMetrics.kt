@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.timeandspace.jpsg
+
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.IdentityHashMap
+import java.util.Locale
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Counters of a [Generator.generate] run, written as JSON to the
+ * [report file][Generator.setReportFile]. The time of each processor excludes the processors later
+ * in the chain which it calls via `postProcess()`.
+ */
+class GenerationMetrics internal constructor(chain: List<TemplateProcessor>) {
+
+    class ProcessorMetrics internal constructor(val name: String) {
+        val invocations = LongAdder()
+        val wallNanos = LongAdder()
+        val cpuNanos = LongAdder()
+        val inputChars = LongAdder()
+        val outputChars = LongAdder()
+        val matches = LongAdder()
+    }
+
+    class TemplateMetrics internal constructor(val template: String) {
+        var contexts = 0
+        var filteredByGenerator = 0
+        var filteredByFileCondition = 0
+        var filteredAsUnreachable = 0
+        val filteredAsCold = LongAdder()
+        var filteredByPartition = 0
+        val generated = LongAdder()
+        val fromCache = LongAdder()
+        val unchanged = LongAdder()
+        val written = LongAdder()
+        var nanos = 0L
+    }
+
+    private class ThreadState {
+        var current: ProcessorMetrics? = null
+        var childrenWallNanos = 0L
+        var childrenCpuNanos = 0L
+    }
+
+    private val processors: List<ProcessorMetrics>
+    private val processorMetrics = IdentityHashMap<TemplateProcessor, ProcessorMetrics>()
+    private val templates = ConcurrentLinkedQueue<TemplateMetrics>()
+    private val threadState = ThreadLocal.withInitial { ThreadState() }
+
+    private val startNanos = System.nanoTime()
+    private val startPatternCacheHits = PatternCache.hits()
+    private val startPatternCacheMisses = PatternCache.misses()
+
+    init {
+        val processors = ArrayList<ProcessorMetrics>()
+        for (processor in chain) {
+            val metrics = ProcessorMetrics(processor.javaClass.simpleName)
+            processors.add(metrics)
+            processorMetrics[processor] = metrics
+        }
+        this.processors = processors
+    }
+
+    fun process(processor: TemplateProcessor, sb: StringBuilder,
+                source: Context, target: Context, template: String) {
+        val metrics = processorMetrics[processor]
+        if (metrics == null) {
+            // A processor not from the generator's chain, e. g. added by a test
+            processor.process(sb, source, target, template)
+            return
+        }
+        val state = threadState.get()
+        val parent = state.current
+        val parentChildrenWallNanos = state.childrenWallNanos
+        val parentChildrenCpuNanos = state.childrenCpuNanos
+        state.current = metrics
+        state.childrenWallNanos = 0
+        state.childrenCpuNanos = 0
+        val startLength = sb.length
+        val startCpuNanos = cpuNanos()
+        val startWallNanos = System.nanoTime()
+        try {
+            processor.process(sb, source, target, template)
+        } finally {
+            val wallNanos = System.nanoTime() - startWallNanos
+            val cpuNanos = cpuNanos() - startCpuNanos
+            metrics.invocations.increment()
+            metrics.wallNanos.add(wallNanos - state.childrenWallNanos)
+            metrics.cpuNanos.add(cpuNanos - state.childrenCpuNanos)
+            metrics.inputChars.add(template.length.toLong())
+            metrics.outputChars.add((sb.length - startLength).toLong())
+            state.current = parent
+            state.childrenWallNanos = parentChildrenWallNanos + wallNanos
+            state.childrenCpuNanos = parentChildrenCpuNanos + cpuNanos
+        }
+    }
+
+    fun countMatch() {
+        threadState.get().current?.matches?.increment()
+    }
+
+    internal fun newTemplate(template: String): TemplateMetrics {
+        val metrics = TemplateMetrics(template)
+        templates.add(metrics)
+        return metrics
+    }
+
+    internal fun writeReport(file: File) {
+        val sb = StringBuilder()
+        sb.append("{\n")
+        sb.append("  \"jpsgVersion\": ").append(jsonString(OutputCache.jpsgVersion)).append(",\n")
+        sb.append("  \"totalMillis\": ").append(millis(System.nanoTime() - startNanos))
+                .append(",\n")
+        sb.append("  \"patternCache\": {\"hits\": ")
+                .append(PatternCache.hits() - startPatternCacheHits)
+                .append(", \"misses\": ").append(PatternCache.misses() - startPatternCacheMisses)
+                .append("},\n")
+        sb.append("  \"processors\": [\n")
+        processors.forEachIndexed { i, p ->
+            sb.append("    {\"name\": ").append(jsonString(p.name))
+                    .append(", \"invocations\": ").append(p.invocations.sum())
+                    .append(", \"wallMillis\": ").append(millis(p.wallNanos.sum()))
+                    .append(", \"cpuMillis\": ").append(millis(p.cpuNanos.sum()))
+                    .append(", \"inputChars\": ").append(p.inputChars.sum())
+                    .append(", \"outputChars\": ").append(p.outputChars.sum())
+                    .append(", \"matches\": ").append(p.matches.sum()).append("}")
+                    .append(if (i < processors.size - 1) ",\n" else "\n")
+        }
+        sb.append("  ],\n")
+        // The slowest templates first
+        val sortedTemplates = templates.sortedByDescending { it.nanos }
+        sb.append("  \"templates\": [\n")
+        sortedTemplates.forEachIndexed { i, t ->
+            sb.append("    {\"template\": ").append(jsonString(t.template))
+                    .append(", \"contexts\": ").append(t.contexts)
+                    .append(", \"filteredByGenerator\": ").append(t.filteredByGenerator)
+                    .append(", \"filteredByFileCondition\": ").append(t.filteredByFileCondition)
+                    .append(", \"filteredAsUnreachable\": ").append(t.filteredAsUnreachable)
+                    .append(", \"filteredAsCold\": ").append(t.filteredAsCold.sum())
+                    .append(", \"filteredByPartition\": ").append(t.filteredByPartition)
+                    .append(", \"generated\": ").append(t.generated.sum())
+                    .append(", \"fromCache\": ").append(t.fromCache.sum())
+                    .append(", \"unchanged\": ").append(t.unchanged.sum())
+                    .append(", \"written\": ").append(t.written.sum())
+                    .append(", \"millis\": ").append(millis(t.nanos)).append("}")
+                    .append(if (i < sortedTemplates.size - 1) ",\n" else "\n")
+        }
+        sb.append("  ]\n")
+        sb.append("}\n")
+        file.absoluteFile.parentFile.mkdirs()
+        file.writeText(sb.toString())
+    }
+
+    companion object {
+        private val threadMXBean = ManagementFactory.getThreadMXBean()
+        private val cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported
+
+        private fun cpuNanos(): Long =
+                if (cpuTimeSupported) threadMXBean.currentThreadCpuTime else 0L
+
+        private fun millis(nanos: Long): String = String.format(Locale.ROOT, "%.3f", nanos / 1e6)
+
+        private fun jsonString(s: String): String {
+            val sb = StringBuilder(s.length + 2)
+            sb.append('"')
+            for (c in s) {
+                when {
+                    c == '"' -> sb.append("\\\"")
+                    c == '\\' -> sb.append("\\\\")
+                    c == '\n' -> sb.append("\\n")
+                    c == '\r' -> sb.append("\\r")
+                    c == '\t' -> sb.append("\\t")
+                    c < ' ' -> sb.append(String.format("\\u%04x", c.toInt()))
+                    else -> sb.append(c)
+                }
+            }
+            return sb.append('"').toString()
+        }
+    }
+}
@@ -28,9 +28,16 @@ import io.timeandspace.jpsg.function.UnaryOperator
 import org.slf4j.LoggerFactory
 import java.io.File
 import java.io.IOException
+import java.io.Reader
 import java.lang.String.format
+import java.nio.file.Files
+import java.security.MessageDigest
 import java.util.*
 import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.LongAdder
 import java.util.regex.Pattern
 
 
@@ -39,16 +46,32 @@ class Generator {
     private var isInit = false
     private var source: File? = null
     internal var target: File? = null
+    private var targetArchive: File? = null
+    private var archiveStored = false
+    private var classesDir: File? = null
+    private val compileClasspath = ArrayList<File>()
+    private val compilerOptions = ArrayList<String>()
+    private var bytecodeSpecialization: Boolean = false
+    private var partition: Int = 0
+    private var partitions: Int = 1
+    private var partitionManifest: File? = null
+    private var partitionRecorder: PartitionRecorder? = null
+    private var retainedOutputs: Set<String>? = null
+    private var usageProfile: UsageProfile? = null
+    private var hotnessThreshold: Long = 1
+    internal var outputRecorder: ((String, String, Context) -> Unit)? = null
 
     private var defaultTypes: MutableList<Option> =
             ArrayList(PrimitiveType.NUMERIC_TYPES_WITH_SHORT_IDS)
     private var dimensionsParser: Dimensions.Parser? = null
 
+    private val blocksProcessor = BlocksProcessor()
+
     private val processors = mutableListOf(
             // in chronological order
             OptionProcessor(),
             ConstProcessor(),
-            BlocksProcessor(),
+            blocksProcessor,
             GenericsProcessor(),
             DefinitionProcessor(),
             FloatingWrappingProcessor(),
@@ -60,6 +83,10 @@ class Generator {
             PrintProcessor()
     )
 
+    private val builtInProcessors: Set<TemplateProcessor> = HashSet(processors)
+    private var processorProfile: Set<String>? = null
+    internal var processorSkipping = true
+
     private class UnparsedDimensions(
             val dimensions: String,
             val parse: (Dimensions.Parser, String) -> Dimensions)
@@ -82,6 +109,22 @@ class Generator {
 
     private var firstProcessor: TemplateProcessor? = null
 
+    private var parallelism: Int = 0
+
+    private var cacheDir: File? = null
+    private var cacheMaxSize: Long = OutputCache.DEFAULT_MAX_SIZE
+    private var outputCache: OutputCache? = null
+    private var configurationKey: String? = null
+
+    private var reportFile: File? = null
+    private var metrics: GenerationMetrics? = null
+
+    private val listeners = ArrayList<GenerationListener>()
+    private var runListeners: List<GenerationListener> = emptyList()
+    private var runSink: OutputSink? = null
+    @Volatile
+    private var previewedTemplate: TemplateTargets? = null
+
     fun setDefaultTypes(defaultTypes: String): Generator {
         val defaultTypes = ArrayList(parseOptions(defaultTypes))
         for (option in defaultTypes) {
@@ -137,9 +180,11 @@ class Generator {
         try {
             return addProcessor(processorClass.newInstance())
         } catch (e: InstantiationException) {
-            throw IllegalArgumentException("$processorClass template processor class should have public no-arg constructor")
+            throw IllegalArgumentException(
+                    "$processorClass template processor class should have public no-arg constructor")
         } catch (e: IllegalAccessException) {
-            throw IllegalArgumentException("$processorClass template processor class should have public no-arg constructor")
+            throw IllegalArgumentException(
+                    "$processorClass template processor class should have public no-arg constructor")
         }
 
     }
@@ -150,11 +195,36 @@ class Generator {
             return addProcessor(
                     Class.forName(processorClassName) as Class<out TemplateProcessor>)
         } catch (e: ClassNotFoundException) {
-            throw IllegalArgumentException("Template processor class with $processorClassName name is not found")
+            throw IllegalArgumentException(
+                    "Template processor class with $processorClassName name is not found")
         }
 
     }
 
+    /**
+     * Restricts the built-in processors to the given class names, `null` for all of them.
+     * [Added][addProcessor] processors are always in the chain.
+     */
+    fun setProcessorProfile(processorProfile: Iterable<String>?): Generator {
+        this.processorProfile = processorProfile?.toSet()
+        return this
+    }
+
+    fun setProcessorProfile(vararg processorProfile: String): Generator {
+        return setProcessorProfile(processorProfile.asList())
+    }
+
+    fun getProcessorProfile(): Set<String>? {
+        return processorProfile
+    }
+
+    /** Returns the processors in the order of the chain */
+    fun getProcessors(): List<TemplateProcessor> {
+        init()
+        // initProcessors() sorted the processors in the reverse order of the chain
+        return Collections.unmodifiableList(ArrayList(processors.asReversed()))
+    }
+
     fun never(options: Iterable<String>): Generator {
         for (opts in options) {
             never.add(opts)
@@ -231,32 +301,356 @@ class Generator {
         return target!!
     }
 
+    fun setTargetArchive(targetArchive: File): Generator {
+        this.targetArchive = targetArchive
+        return this
+    }
+
+    fun setTargetArchive(targetArchive: String): Generator {
+        return setTargetArchive(File(targetArchive))
+    }
+
+    fun getTargetArchive(): File? {
+        return targetArchive
+    }
+
+    fun setArchiveStored(archiveStored: Boolean): Generator {
+        this.archiveStored = archiveStored
+        return this
+    }
+
+    fun isArchiveStored(): Boolean {
+        return archiveStored
+    }
+
+    /**
+     * Compiles generated sources in process and writes the class files to the given directory.
+     * Class files and sources written by the previous run and no longer generated are deleted,
+     * as listed in `<classesDir>.jpsg-outputs` next to the directory; other files are kept.
+     */
+    fun setClassesDir(classesDir: File): Generator {
+        this.classesDir = classesDir
+        return this
+    }
+
+    fun setClassesDir(classesDir: String): Generator {
+        return setClassesDir(File(classesDir))
+    }
+
+    fun getClassesDir(): File? {
+        return classesDir
+    }
+
+    fun addCompileClasspath(classpath: Iterable<File>): Generator {
+        compileClasspath.addAll(classpath)
+        return this
+    }
+
+    fun getCompileClasspath(): List<File> {
+        return compileClasspath
+    }
+
+    fun addCompilerOptions(options: Iterable<String>): Generator {
+        compilerOptions.addAll(options)
+        return this
+    }
+
+    fun addCompilerOptions(vararg options: String): Generator {
+        return addCompilerOptions(options.asList())
+    }
+
+    fun getCompilerOptions(): List<String> {
+        return compilerOptions
+    }
+
+    /**
+     * Derives the class files of the specializations which differ from other sources only in names
+     * from their class files instead of compiling them, see [setClassesDir].
+     */
+    fun setBytecodeSpecialization(bytecodeSpecialization: Boolean): Generator {
+        this.bytecodeSpecialization = bytecodeSpecialization
+        return this
+    }
+
+    fun isBytecodeSpecialization(): Boolean {
+        return bytecodeSpecialization
+    }
+
+    /**
+     * Generates only the given one-based partition of the templates and their target contexts, so
+     * that independent processes together generate the whole output.
+     */
+    fun setPartition(partition: Int, partitions: Int): Generator {
+        if (partitions <= 0 || partition < 1 || partition > partitions) {
+            throw IllegalArgumentException(
+                    "Partition should be between 1 and $partitions, $partition given")
+        }
+        this.partition = partition
+        this.partitions = partitions
+        return this
+    }
+
+    fun setPartition(partition: String): Generator {
+        val (i, n) = parsePartition(partition)
+        return setPartition(i, n)
+    }
+
+    fun getPartition(): String? {
+        return if (partitions > 1) "$partition/$partitions" else null
+    }
+
+    fun setPartitionManifest(partitionManifest: File): Generator {
+        this.partitionManifest = partitionManifest
+        return this
+    }
+
+    fun setPartitionManifest(partitionManifest: String): Generator {
+        return setPartitionManifest(File(partitionManifest))
+    }
+
+    fun getPartitionManifest(): File? {
+        return partitionManifest
+    }
+
+    /**
+     * Verifies that the partitions with the given manifests together cover the whole generation,
+     * and finds the files in the target which none of them generated.
+     */
+    @Throws(IOException::class)
+    fun verifyPartitions(manifests: Collection<File>): PartitionVerification {
+        init()
+        if (manifests.isEmpty())
+            throw IllegalArgumentException("No partition manifests given")
+        val readManifests = manifests.map { Pair(it, PartitionManifest.read(it)) }
+        val partitions = readManifests[0].second.partitions
+        val plan = makePartitionPlan(sourceTemplates(), partitions)
+        val invalidManifests = ArrayList<String>()
+        val manifestsByPartition = TreeMap<Int, PartitionManifest>()
+        for ((file, manifest) in readManifests) {
+            if (manifest.partitions != partitions) {
+                invalidManifests.add("$file: partition ${manifest.partition}/" +
+                        "${manifest.partitions}, while $partitions partitions are expected")
+            } else if (manifest.planKey != plan.key) {
+                invalidManifests.add("$file: generated from other templates or with another " +
+                        "configuration")
+            } else if (manifestsByPartition.putIfAbsent(manifest.partition, manifest) != null) {
+                invalidManifests.add("$file: partition ${manifest.partition} is given twice")
+            }
+        }
+        val missingPartitions = (1..partitions).filter { it !in manifestsByPartition }
+        val uncoveredUnits = ArrayList<String>()
+        for (p in 1..partitions) {
+            val coveredUnits = manifestsByPartition[p]?.units ?: emptySet<String>()
+            plan.units(p).filterTo(uncoveredUnits) { it !in coveredUnits }
+        }
+        val outputs = HashSet<String>()
+        val conflictingOutputs = TreeSet<String>()
+        for (manifest in manifestsByPartition.values) {
+            for (output in manifest.outputs) {
+                if (!outputs.add(output))
+                    conflictingOutputs.add(output)
+            }
+        }
+        val missingOutputs = ArrayList<String>()
+        val staleFiles = ArrayList<File>()
+        val targetDir = target
+        if (targetDir != null && targetDir.isDirectory) {
+            outputs.sorted().filterTo(missingOutputs) { !targetDir.resolve(it).isFile }
+            val manifestFiles = manifests.map { it.absoluteFile }.toSet()
+            targetDir.walkTopDown().filter { it.isFile }.sorted().filterTo(staleFiles) {
+                it.relativeTo(targetDir).invariantSeparatorsPath !in outputs &&
+                        it.absoluteFile !in manifestFiles
+            }
+        }
+        return PartitionVerification(partitions, missingPartitions, invalidManifests,
+                uncoveredUnits.sorted(), conflictingOutputs.toList(), missingOutputs, staleFiles)
+    }
+
+    /**
+     * Restricts generation to the given Java sources, by their paths relative to the target root
+     * and derived from the template file names. `null` retains all outputs.
+     */
+    fun setRetainedOutputs(retainedOutputs: Collection<String>?): Generator {
+        this.retainedOutputs = retainedOutputs?.let { HashSet(it) }
+        return this
+    }
+
+    @Throws(IOException::class)
+    fun setRetainedOutputs(retainedOutputsFile: File): Generator {
+        return setRetainedOutputs(
+                retainedOutputsFile.readLines().map { it.trim() }.filter { it.isNotEmpty() })
+    }
+
+    fun getRetainedOutputs(): Set<String>? {
+        return retainedOutputs
+    }
+
+    /**
+     * Restricts primitive specializations to the classes which are hot in the usage profile.
+     * Contexts without primitive options are kept as the generic fallback.
+     */
+    fun setUsageProfile(usageProfile: UsageProfile): Generator {
+        this.usageProfile = usageProfile
+        return this
+    }
+
+    @Throws(IOException::class)
+    fun setUsageProfile(vararg usageProfileFiles: File): Generator {
+        return setUsageProfile(UsageProfile.read(*usageProfileFiles))
+    }
+
+    fun getUsageProfile(): UsageProfile? {
+        return usageProfile
+    }
+
+    fun setHotnessThreshold(hotnessThreshold: Long): Generator {
+        if (hotnessThreshold < 1)
+            throw IllegalArgumentException("Hotness threshold should be positive")
+        this.hotnessThreshold = hotnessThreshold
+        return this
+    }
+
+    fun getHotnessThreshold(): Long {
+        return hotnessThreshold
+    }
+
+    fun setCacheDir(cacheDir: File): Generator {
+        this.cacheDir = cacheDir
+        return this
+    }
+
+    fun setCacheDir(cacheDir: String): Generator {
+        return setCacheDir(File(cacheDir))
+    }
+
+    fun getCacheDir(): File? {
+        return cacheDir
+    }
+
+    fun setCacheMaxSize(maxSizeBytes: Long): Generator {
+        if (maxSizeBytes <= 0) {
+            throw IllegalArgumentException("Cache max size should be positive, $maxSizeBytes given")
+        }
+        this.cacheMaxSize = maxSizeBytes
+        return this
+    }
+
+    fun getCacheMaxSize(): Long {
+        return cacheMaxSize
+    }
+
+    fun setParallelism(parallelism: Int): Generator {
+        if (parallelism <= 0)
+            throw IllegalArgumentException("Parallelism should be positive, $parallelism given")
+        this.parallelism = parallelism
+        return this
+    }
+
+    fun getParallelism(): Int {
+        return parallelism
+    }
+
+    /** Writes [GenerationMetrics] as JSON to the given file in the end of [generate] */
+    fun setReportFile(reportFile: File): Generator {
+        this.reportFile = reportFile
+        return this
+    }
+
+    fun setReportFile(reportFile: String): Generator {
+        return setReportFile(File(reportFile))
+    }
+
+    fun getReportFile(): File? {
+        return reportFile
+    }
+
+    fun addListener(listener: GenerationListener): Generator {
+        listeners.add(listener)
+        return this
+    }
+
+    fun removeListener(listener: GenerationListener): Generator {
+        listeners.remove(listener)
+        return this
+    }
+
     @Throws(IOException::class)
     fun generate() {
         log.debug("Generator source: {}", source)
-        log.debug("Generator target: {}", target)
         if (!source!!.exists()) {
             return
         }
+        // Counting the template files takes a walk of the source tree, only listeners need it
+        val templateFiles = if (source!!.isDirectory && listeners.isNotEmpty()) {
+            source!!.walkTopDown().count { it.isFile }
+        } else {
+            -1
+        }
+        val archive = targetArchive
+        val classes = classesDir
+        if (archive != null && classes != null) {
+            throw IllegalStateException(
+                    "Either target archive or classes dir could be set, both are set: " +
+                            "$archive, $classes")
+        }
+        if (classes != null) {
+            log.debug("Generator classes dir: {}", classes)
+            CompilingOutputSink(classes, compileClasspath, compilerOptions, target,
+                    bytecodeSpecialization, outputsManifest(classes)).use { sink ->
+                runGeneration(source, classes, templateFiles, sink, ::sourceTemplates) {
+                    generateFromSource(null)
+                }
+                sink.commit()
+            }
+            return
+        }
+        if (archive != null) {
+            log.debug("Generator target archive: {}", archive)
+            ZipOutputSink(archive, archiveStored).use { sink ->
+                runGeneration(source, archive, templateFiles, sink, ::sourceTemplates) {
+                    generateFromSource(null)
+                }
+                if (!sink.commit()) {
+                    log.info("{} is up to date", archive)
+                }
+            }
+            return
+        }
+        log.debug("Generator target: {}", target)
         if (!target!!.exists()) {
             target!!.mkdirs()
         } else if (!target!!.isDirectory) {
             log.error("Target {} should be a dir", target)
             throw IllegalArgumentException("$target generation destination should be a dir")
         }
-        init()
+        runGeneration(source, target, templateFiles, null, ::sourceTemplates) {
+            generateFromSource(target)
+        }
+    }
+
+    private fun outputsManifest(classes: File): File {
+        // Partitions sharing the classes dir don't delete the outputs of each other
+        val partitionSuffix = if (partitions > 1) "-$partition-of-$partitions" else ""
+        return File(classes.absoluteFile.parentFile,
+                "${classes.name}$partitionSuffix.jpsg-outputs")
+    }
+
+    private fun generateFromSource(targetRoot: File?) {
+        fun targetDir(relativeDir: File) = targetRoot?.resolve(relativeDir) ?: relativeDir
         if (source!!.isDirectory) {
             class DirGeneration(val dir: File) : Callable<Unit> {
 
                 override fun call() {
                     try {
                         val subTasks = ArrayList<ForkJoinTaskShim<Unit>>()
-                        val targetDir = target!!.resolve(dir.relativeTo(this@Generator.source!!))
-                        try {
-                            dir.copyTo(targetDir)
-                        } catch (e: IOException) {
-                            if (!targetDir.isDirectory)
-                                throw e
+                        val targetDir = targetDir(dir.relativeTo(this@Generator.source!!))
+                        if (targetRoot != null) {
+                            try {
+                                dir.copyTo(targetDir)
+                            } catch (e: IOException) {
+                                if (!targetDir.isDirectory)
+                                    throw e
+                            }
                         }
 
                         dir.walkTopDown().onEnter { d ->
@@ -267,29 +661,333 @@ class Generator {
                                 true
                             }
                         }.filter { it.isFile }.forEach { f ->
-                            val targetFile = target!!.resolve(f.relativeTo(source!!))
-                            if (f.lastModified() < targetFile.lastModified()) {
-                                log.info("File {} is up to date, not processing source",
-                                        targetFile)
+                            val templatePath = f.relativeTo(source!!)
+                            if (targetRoot != null) {
+                                val targetFile = targetRoot.resolve(templatePath)
+                                if (f.lastModified() < targetFile.lastModified()) {
+                                    log.debug("File {} is up to date, not processing source",
+                                            targetFile)
+                                }
                             }
                             subTasks.add(ForkJoinTasks.adapt(Callable<Unit> {
-                                doGenerate(f, File(targetFile.parent))
+                                doGenerate(f, templatePath.path, null, targetDir)
                             }))
                         }
                         ForkJoinTasks.invokeAll(subTasks)
+                        runSink?.directoryFinished(targetDir.invariantSeparatorsPath)
                     } catch (e: IOException) {
                         throw RuntimeException(e)
                     }
 
                 }
             }
-            ForkJoinTasks.adapt(DirGeneration(source!!)).forkAndGet()
+            forkAndGet(ForkJoinTasks.adapt(DirGeneration(source!!)))
+        } else {
+            forkAndGet(ForkJoinTasks.adapt(Callable<Unit> {
+                doGenerate(source!!, source!!.name, null, targetDir(File("")))
+                runSink?.directoryFinished("")
+            }))
+        }
+    }
+
+    /**
+     * Generates in memory from the templates by their paths relative to the source root. The sink
+     * is called concurrently, so it must be thread-safe.
+     */
+    @Throws(IOException::class)
+    fun generate(templates: Map<String, String>, sink: OutputSink) {
+        log.debug("Generating {} templates in memory", templates.size)
+        val templateBytes = {
+            templates.entries.associateTo(TreeMap()) { (templatePath, content) ->
+                Pair(File(templatePath).invariantSeparatorsPath,
+                        content.toByteArray(Charsets.UTF_8))
+            }
+        }
+        runGeneration(null, null, templates.size, sink, templateBytes) {
+            val templatesByDir = templates.entries.groupBy { File(it.key).parentFile ?: File("") }
+            val dirTasks = templatesByDir.map { (dir, dirTemplates) ->
+                ForkJoinTasks.adapt(Callable<Unit> {
+                    ForkJoinTasks.invokeAll(dirTemplates.map { (templatePath, content) ->
+                        val template = File(templatePath)
+                        ForkJoinTasks.adapt(Callable<Unit> {
+                            doGenerate(template, template.invariantSeparatorsPath, content, dir)
+                        })
+                    })
+                    sink.directoryFinished(dir.invariantSeparatorsPath)
+                })
+            }
+            forkAndGet(ForkJoinTasks.adapt(Callable<Unit> {
+                ForkJoinTasks.invokeAll(dirTasks)
+            }))
+        }
+    }
+
+    @Throws(IOException::class)
+    fun generate(templates: Map<String, String>): SortedMap<String, String> {
+        val generated = ConcurrentHashMap<String, String>()
+        generate(templates, OutputSink { path, content -> generated[path] = content })
+        return TreeMap(generated)
+    }
+
+    @Throws(IOException::class)
+    fun generate(templatePath: String, template: Reader): SortedMap<String, String> {
+        return generate(Collections.singletonMap(templatePath, template.readText()))
+    }
+
+    /**
+     * Generates the single specialization of the template for the target context, without writing
+     * anything. The generator may be reused for many previews.
+     */
+    fun preview(templatePath: String, template: String, target: Context): Preview {
+        val templateTargets = previewedTemplate(templatePath, template)
+        return templateTargets.generate(target)
+    }
+
+    fun preview(templatePath: String, template: String, targetClassName: String): Preview {
+        val templateTargets = previewedTemplate(templatePath, template)
+        for ((fileName, target) in templateTargets.targets) {
+            if (fileName == targetClassName || className(fileName) == targetClassName)
+                return templateTargets.generate(target)
+        }
+        if (templateTargets.content.contains("ClassName")) {
+            for (target in templateTargets.targets.values) {
+                val preview = templateTargets.generate(target)
+                if (preview.fileName == targetClassName ||
+                        className(preview.fileName) == targetClassName) {
+                    return preview
+                }
+            }
+        }
+        throw IllegalArgumentException("$templatePath doesn't have specialization " +
+                "$targetClassName, specializations: ${templateTargets.targets.keys}")
+    }
+
+    fun previewTargets(templatePath: String, template: String): Map<String, Context> {
+        return Collections.unmodifiableMap(previewedTemplate(templatePath, template).targets)
+    }
+
+    private fun previewedTemplate(templatePath: String, template: String): TemplateTargets {
+        val previewed = previewedTemplate
+        if (previewed != null && previewed.templatePath == templatePath &&
+                previewed.template == template) {
+            return previewed
+        }
+        blocksProcessor.clearCompiledTemplates()
+        return TemplateTargets(templatePath, template).also { previewedTemplate = it }
+    }
+
+    private fun className(fileName: String) = fileName.removeSuffix(".java").substringAfterLast('.')
+
+    private inner class TemplateTargets(val templatePath: String, val template: String) {
+        val sourceFile = File(templatePath)
+        val mainContext: Context
+        val content: String
+        val contextsByFileName = LinkedHashMap<String, MutableList<Context>>()
+        val targets = LinkedHashMap<String, Context>()
+
+        init {
+            init()
+            setCurrentGenerator(this@Generator)
+            setCurrentSourceFile(sourceFile)
+            val parsedTemplate = ParsedTemplate.parse(template)
+            var targetDims: Dimensions = dimensionsParser!!.parseClassName(sourceFile.name)
+            val explicitContext = parsedTemplate.explicitDimensions
+            if (explicitContext != null) {
+                targetDims = parseAndCheckExplicitContext(explicitContext, sourceFile)
+            }
+            val targetContexts: List<Context> = targetDims.generateContexts()
+            mainContext = defaultContext!!.join(targetContexts[0])
+            val condition = parsedTemplate.condition
+            var fileCond: Condition? = null
+            if (condition != null) {
+                fileCond = Condition.parseCheckedCondition(
+                        getBlockGroup(condition, COND_START_BLOCK_P, "condition"),
+                        dimensionsParser!!, mainContext,
+                        template, parsedTemplate.conditionStart)
+            }
+            content = parsedTemplate.body(template)
+            for (tc in targetContexts) {
+                if (!checkContext(tc))
+                    continue
+                val target = defaultContext!!.join(tc)
+                if (fileCond != null && !fileCond.check(target))
+                    continue
+                val fileName = generate(mainContext, target, sourceFile.name)
+                contextsByFileName.getOrPut(fileName) { ArrayList() }.add(target)
+                targets.putIfAbsent(fileName, target)
+            }
+        }
+
+        fun generate(target: Context): Preview {
+            setCurrentGenerator(this@Generator)
+            setCurrentSourceFile(sourceFile)
+            setRedefinedClassName(null)
+            setSkippedProcessors(findSkippedProcessors(content, mainContext, listOf(target)))
+            previewing.set(true)
+            var fileName = generate(mainContext, target, sourceFile.name)
+            val generatedContent = try {
+                generate(mainContext, target, content)
+            } finally {
+                setSkippedProcessors(null)
+                previewing.remove()
+            }
+            val redefinedClassName = getRedefinedClassName()
+            val generatedClassName = className(fileName)
+            if (redefinedClassName != null && generatedClassName != redefinedClassName) {
+                fileName = fileName.replace(generatedClassName, redefinedClassName)
+            }
+            return Preview(fileName, target, generatedContent, template)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun sourceTemplates(): SortedMap<String, ByteArray> {
+        val source = this.source!!
+        val templates = TreeMap<String, ByteArray>()
+        if (source.isDirectory) {
+            source.walkTopDown().filter { it.isFile }.forEach {
+                templates[it.relativeTo(source).invariantSeparatorsPath] = it.readBytes()
+            }
+        } else if (source.isFile) {
+            templates[source.name] = source.readBytes()
+        }
+        return templates
+    }
+
+    private fun makePartitionPlan(templates: SortedMap<String, ByteArray>, partitions: Int):
+            PartitionPlan {
+        val digest = MessageDigest.getInstance("SHA-256")
+        // Without the JPSG version, which is the location of JPSG classes in JPSG's own build,
+        // different on different machines
+        // Processors which couldn't describe their configuration are described by class: the plan
+        // key only guards against partitions of obviously different configurations
+        val configurationKey = makeConfigurationKey(describeProcessorsByClass = true)!!
+        digest.update(configurationKey.substringAfter('\n').toByteArray(Charsets.UTF_8))
+        val units = ArrayList<PartitionPlan.WorkUnit>()
+        for ((templatePath, bytes) in templates) {
+            digest.update(0)
+            digest.update(templatePath.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+            digest.update(bytes)
+            val cost = bytes.size + PartitionPlan.UNIT_COST
+            val fileName = templatePath.substringAfterLast('/')
+            if (dimensionsParser!!.parseClassName(fileName).dimensions.isEmpty() &&
+                    !fileName.endsWith(".java") && !mayHaveDirectives(bytes, null)) {
+                // Copied verbatim, see generateFile()
+                units.add(PartitionPlan.WorkUnit(
+                        PartitionPlan.unitKey(templatePath, fileName), cost))
+                continue
+            }
+            val templateTargets = TemplateTargets(templatePath, String(bytes, Charsets.UTF_8))
+            for ((generatedFileName, contexts) in templateTargets.contextsByFileName) {
+                units.add(PartitionPlan.WorkUnit(
+                        PartitionPlan.unitKey(templatePath, generatedFileName),
+                        cost * contexts.size))
+            }
+        }
+        val key = digest.digest().joinToString("") { String.format("%02x", it) }
+        return PartitionPlan.compute(key, partitions, units)
+    }
+
+    private inline fun runGeneration(source: File?, target: File?, templateFiles: Int,
+                                     sink: OutputSink?,
+                                     templates: () -> SortedMap<String, ByteArray>,
+                                     generation: () -> Unit) {
+        init()
+        // initProcessors() sorted the processors in the reverse order of the chain
+        metrics = if (reportFile != null) GenerationMetrics(processors.asReversed()) else null
+        val startNanos = System.nanoTime()
+        val recorder = if (partitions > 1) {
+            val plan = makePartitionPlan(templates(), partitions)
+            PartitionRecorder(partition, plan, if (sink == null) this.target else null)
         } else {
-            ForkJoinTasks.adapt(Callable<Unit> { doGenerate(source!!, target!!) }).forkAndGet()
+            null
         }
+        partitionRecorder = recorder
+        runListeners = listeners + GenerationSummary() + listOfNotNull(recorder)
+        runSink = sink
+        notifyListeners { it.generationStarted(source, target, templateFiles) }
+        try {
+            generation()
+        } finally {
+            runSink = null
+            partitionRecorder = null
+            blocksProcessor.clearCompiledTemplates()
+        }
+        if (recorder != null && partitionManifest != null) {
+            recorder.manifest().write(partitionManifest!!)
+            log.info("Partition {}/{} manifest written to {}",
+                    partition, partitions, partitionManifest)
+        }
+        outputCache?.trim()
+        log.debug("Pattern cache: {} hits, {} misses",
+                PatternCache.hits(), PatternCache.misses())
+        if (metrics != null) {
+            metrics!!.writeReport(reportFile!!)
+            metrics = null
+            log.info("Generation report written to {}", reportFile)
+        }
+        notifyListeners { it.generationFinished(System.nanoTime() - startNanos) }
     }
 
 
+    private fun forkAndGet(task: ForkJoinTaskShim<Unit>) {
+        try {
+            if (parallelism > 0) {
+                task.forkAndGet(parallelism)
+            } else {
+                task.forkAndGet()
+            }
+        } catch (e: ExecutionException) {
+            // Not to wrap cancellation requested by a listener
+            val cause = e.cause
+            if (cause is CancellationException)
+                throw cause
+            throw e
+        }
+    }
+
+    private inline fun notifyListeners(action: (GenerationListener) -> Unit) {
+        for (listener in runListeners) {
+            action(listener)
+        }
+    }
+
+    private fun checkCancelled() {
+        if (runListeners.any { it.isCancelled }) {
+            throw CancellationException("Generation is cancelled by a listener")
+        }
+    }
+
+    private class GenerationSummary : GenerationListener {
+        private val files = LongAdder()
+        private val written = LongAdder()
+        private val fromCache = LongAdder()
+        private val unchanged = LongAdder()
+
+        override fun fileFinished(template: File, nanos: Long) {
+            files.increment()
+        }
+
+        override fun outputUnchanged(template: File, output: File, nanos: Long) {
+            unchanged.increment()
+        }
+
+        override fun outputWritten(template: File, output: File, fromCache: Boolean, nanos: Long) {
+            if (fromCache) {
+                this.fromCache.increment()
+            } else {
+                written.increment()
+            }
+        }
+
+        override fun generationFinished(nanos: Long) {
+            log.info("Generated {} template files in {} ms: {} files written, " +
+                    "{} linked from cache, {} unchanged", files.sum(), nanos / 1_000_000,
+                    written.sum(), fromCache.sum(), unchanged.sum())
+        }
+    }
+
     @Synchronized fun init() {
         if (isInit)
             return
@@ -312,7 +1010,70 @@ class Generator {
 
         prohibitingConditions = excluded.map { dimensionsParser!!.parse(it) }.toList()
 
+        val profile = processorProfile
+        if (profile != null) {
+            processors.retainAll { processor ->
+                processor !in builtInProcessors || processor.javaClass.simpleName in profile ||
+                        processor.javaClass.name in profile
+            }
+            if (processors.isEmpty()) {
+                throw IllegalArgumentException(
+                        "No processors match the processor profile $profile")
+            }
+        }
         initProcessors()
+
+        if (cacheDir != null) {
+            configurationKey = makeConfigurationKey()
+            if (configurationKey != null) {
+                outputCache = OutputCache(cacheDir!!, cacheMaxSize)
+            } else {
+                log.info("Generated files are not cached because the configuration of some " +
+                        "processors couldn't be described, " +
+                        "see TemplateProcessor.configurationKey()")
+            }
+        }
+    }
+
+    private fun makeConfigurationKey(describeProcessorsByClass: Boolean = false): String? {
+        val key = StringBuilder(OutputCache.jpsgVersion)
+        key.append("\ndefaultTypes: ").append(defaultTypes)
+        key.append("\nwith: ").append(with.map { it.dimensions })
+        key.append("\nnever: ").append(never)
+        key.append("\ninclude: ").append(included.map { it.dimensions })
+        key.append("\nexclude: ").append(excluded.map { it.dimensions })
+        key.append("\nprocessors: ")
+        for ((index, processor) in processors.withIndex()) {
+            val processorKey = processor.configurationKey()
+            if (processorKey == null && !describeProcessorsByClass) {
+                return null
+            }
+            if (index > 0) {
+                key.append(", ")
+            }
+            key.append(processor.javaClass.name).append(':').append(processor.priority())
+            if (!processorKey.isNullOrEmpty()) {
+                key.append('(').append(processorKey).append(')')
+            }
+        }
+        return key.toString()
+    }
+
+    /** Returns `null` if the configuration of some processors couldn't be described */
+    fun getConfigurationKey(): String? {
+        init()
+        return configurationKey ?: makeConfigurationKey()
+    }
+
+    private fun contextCacheKey(context: Context): String {
+        return context.joinToString(",") { (dim, option) ->
+            val optionKey = when (option) {
+                is PrimitiveType -> option.name
+                is ObjectType -> option.neutralIdStyle.name
+                else -> option.toString()
+            }
+            "$dim=${option.javaClass.simpleName}:$optionKey"
+        }
     }
 
     private fun initProcessors() {
@@ -327,80 +1088,301 @@ class Generator {
     }
 
     @Throws(IOException::class)
-    private fun doGenerate(sourceFile: File, targetDir: File) {
+    private fun doGenerate(sourceFile: File, templatePath: String, rawContent: String?,
+                           targetDir: File) {
+        checkCancelled()
+        val startNanos = System.nanoTime()
+        notifyListeners { it.fileStarted(sourceFile) }
+        try {
+            generateFile(sourceFile, templatePath, rawContent, targetDir)
+        } catch (e: Exception) {
+            if (e !is CancellationException) {
+                notifyListeners { it.error(sourceFile, e) }
+            }
+            throw e
+        }
+        notifyListeners { it.fileFinished(sourceFile, System.nanoTime() - startNanos) }
+    }
+
+    @Throws(IOException::class)
+    private fun generateFile(sourceFile: File, templatePath: String, givenContent: String?,
+                             targetDir: File) {
+        val startNanos = System.nanoTime()
+        val sink = runSink
+        val summaryEvent = JfrEvents.TEMPLATE_GENERATION.begin()
+        // Counters for the JFR summary event are collected even if the report is not enabled
+        val templateMetrics = metrics?.newTemplate(templatePath) ?: if (summaryEvent != null) {
+            GenerationMetrics.TemplateMetrics(templatePath)
+        } else {
+            null
+        }
         setCurrentGenerator(this)
         setCurrentSourceFile(sourceFile)
-        log.info("Processing file: {}", sourceFile)
+        log.debug("Processing file: {}", sourceFile)
         val sourceFileName = sourceFile.name
         var targetDims: Dimensions = dimensionsParser!!.parseClassName(sourceFileName)
-        var rawContent = sourceFile.readText()
-        val fileDimsM = CONTEXT_START_P.matcher(rawContent)
-        if (fileDimsM.find() && fileDimsM.start() == 0) {
-            val explicitContext = fileDimsM.group()
+        val readEvent = JfrEvents.TEMPLATE_READ.begin()
+        val rawBytes = if (givenContent == null) sourceFile.readBytes() else null
+        readEvent?.set(templatePath, (rawBytes?.size ?: givenContent!!.length).toLong())?.commit()
+        if (targetDims.dimensions.isEmpty() && !sourceFileName.endsWith(".java") &&
+                !mayHaveDirectives(rawBytes, givenContent)) {
+            // A resource without options and directives is the same in the only context
+            if (isInPartition(sourceFile, templatePath, sourceFileName, defaultContext!!,
+                            templateMetrics)) {
+                copyVerbatim(sourceFile, rawBytes, givenContent, targetDir)
+            }
+            templateMetrics?.contexts = 1
+            templateMetrics?.nanos = System.nanoTime() - startNanos
+            return
+        }
+        val rawContent = givenContent ?: String(rawBytes!!, Charsets.UTF_8)
+        val parsedTemplate = ParsedTemplate.parse(rawContent)
+        val explicitContext = parsedTemplate.explicitDimensions
+        if (explicitContext != null) {
             targetDims = parseAndCheckExplicitContext(explicitContext, sourceFile)
-            rawContent = rawContent.substring(fileDimsM.end()).trim { it <= ' ' } + "\n"
         }
-        log.info("Target dimensions: {}", targetDims)
+        log.debug("Target dimensions: {}", targetDims)
+        val enumerationEvent = JfrEvents.CONTEXT_ENUMERATION.begin()
         val targetContexts: List<Context> = targetDims.generateContexts()
         val mainContext = defaultContext!!.join(targetContexts[0])
-        val fileCondM = COND_START_P.matcher(rawContent)
+        val condition = parsedTemplate.condition
         var fileCond: Condition? = null
-        if (fileCondM.find() && fileCondM.start() == 0) {
+        if (condition != null) {
             fileCond = Condition.parseCheckedCondition(
-                    getBlockGroup(fileCondM.group(), COND_START_BLOCK_P, "condition"),
+                    getBlockGroup(condition, COND_START_BLOCK_P, "condition"),
                     dimensionsParser!!, mainContext,
-                    rawContent, fileCondM.start())
-            rawContent = rawContent.substring(fileCondM.end()).trim { it <= ' ' } + "\n"
+                    rawContent, parsedTemplate.conditionStart)
+        }
+        val content = parsedTemplate.body(rawContent)
+        // package-info.java templates are not cached because OverviewProcessor writes
+        // overview.html as a side effect of their generation
+        val templateCacheKey: String? =
+                if (outputCache != null && sourceFileName != "package-info.java") {
+                    outputCache!!.key(configurationKey!!, sourceFileName, content)
+                } else {
+                    null
+                }
+
+        val skippedProcessors = findSkippedProcessors(content, mainContext, targetContexts)
+        if (skippedProcessors != null) {
+            log.debug("Processors skipped for {}: {}", sourceFileName, skippedProcessors)
         }
-        val content = rawContent
 
+        templateMetrics?.contexts = targetContexts.size
         val contextGenerationTasks = ArrayList<ForkJoinTaskShim<Unit>>()
+        val contextTargets = ArrayList<Context>()
         for (tc in targetContexts) {
             if (!checkContext(tc)) {
                 log.debug("Context filtered by generator: {}", tc)
+                templateMetrics?.let { it.filteredByGenerator++ }
+                notifyListeners {
+                    it.contextFiltered(sourceFile, tc,
+                            GenerationListener.FilterReason.CONFIGURATION)
+                }
                 continue
             }
             val target = defaultContext!!.join(tc)
             if (fileCond != null && !fileCond.check(target)) {
                 log.debug("Context filtered by file condition: {}", target)
+                templateMetrics?.let { it.filteredByFileCondition++ }
+                notifyListeners {
+                    it.contextFiltered(sourceFile, target,
+                            GenerationListener.FilterReason.FILE_CONDITION)
+                }
                 continue
             }
+            contextTargets.add(target)
+        }
+        enumerationEvent?.set(templatePath, targetContexts.size,
+                targetContexts.size - contextTargets.size)?.commit()
+
+        for (target in contextTargets) {
             var generatedFileName = generate(mainContext, target, sourceFileName)
+            if (!isInPartition(sourceFile, templatePath, generatedFileName, target,
+                            templateMetrics)) {
+                continue
+            }
+            val specializedPath = relativeOutputPath(targetDir, generatedFileName)
+            if (!isRetained(generatedFileName, specializedPath)) {
+                log.debug("Context filtered as unreachable: {}", target)
+                templateMetrics?.let { it.filteredAsUnreachable++ }
+                notifyListeners {
+                    it.contextFiltered(sourceFile, target,
+                            GenerationListener.FilterReason.UNREACHABLE)
+                }
+                continue
+            }
+            // If the template redefines ClassName, hotness is checked after generation
+            val mayRedefineClassName = content.contains("ClassName")
+            if (!mayRedefineClassName && !isHot(generatedFileName, specializedPath, target)) {
+                filterCold(sourceFile, target, templateMetrics)
+                continue
+            }
             var generatedFile = targetDir.resolve(generatedFileName)
             contextGenerationTasks.add(ForkJoinTasks.adapt(Callable<Unit> {
+                checkCancelled()
+                val cacheKey = if (templateCacheKey != null) {
+                    outputCache!!.key(templateCacheKey,
+                            contextCacheKey(mainContext), contextCacheKey(target))
+                } else {
+                    null
+                }
+                if (cacheKey != null) {
+                    val cached = outputCache!!.get(cacheKey)
+                    if (cached != null) {
+                        if (mayRedefineClassName && !isHot(cached.fileName,
+                                        relativeOutputPath(targetDir, cached.fileName), target)) {
+                            filterCold(sourceFile, target, templateMetrics)
+                            return@Callable
+                        }
+                        val cachedFile = targetDir.resolve(cached.fileName)
+                        outputRecorder?.invoke(relativeOutputPath(targetDir, cached.fileName),
+                                specializedPath, target)
+                        val writeStartNanos = System.nanoTime()
+                        if (sink != null) {
+                            val writeEvent = JfrEvents.OUTPUT_WRITE.begin()
+                            val cachedContent = cached.content.readText()
+                            sink.write(cachedFile.invariantSeparatorsPath, cachedContent)
+                            writeEvent?.set(templatePath, cached.fileName,
+                                    cachedContent.length.toLong(), true)?.commit()
+                            notifyListeners {
+                                it.outputWritten(sourceFile, cachedFile, true,
+                                        System.nanoTime() - writeStartNanos)
+                            }
+                        } else if (outputCache!!.isMaterializedAs(cached, cachedFile)) {
+                            log.debug("Already generated: {}", cached.fileName)
+                            notifyListeners {
+                                it.outputUnchanged(sourceFile, cachedFile,
+                                        System.nanoTime() - writeStartNanos)
+                            }
+                        } else {
+                            val writeEvent = JfrEvents.OUTPUT_WRITE.begin()
+                            outputCache!!.materialize(cached, cachedFile)
+                            writeEvent?.set(templatePath, cached.fileName,
+                                    cached.content.length(), true)?.commit()
+                            log.debug("Wrote from cache: {}", cached.fileName)
+                            notifyListeners {
+                                it.outputWritten(sourceFile, cachedFile, true,
+                                        System.nanoTime() - writeStartNanos)
+                            }
+                        }
+                        templateMetrics?.fromCache?.increment()
+                        return@Callable
+                    }
+                }
                 setCurrentGenerator(this@Generator)
                 setCurrentSourceFile(sourceFile)
                 setRedefinedClassName(null)
-                val generatedContent = generate(mainContext, target, content)
+                setSkippedProcessors(skippedProcessors)
+                setCurrentMetrics(metrics)
+                val generationStartNanos = System.nanoTime()
+                val generatedContent = try {
+                    generate(mainContext, target, content)
+                } finally {
+                    setSkippedProcessors(null)
+                    setCurrentMetrics(null)
+                }
+                templateMetrics?.generated?.increment()
+                notifyListeners {
+                    it.contextGenerated(sourceFile, target,
+                            System.nanoTime() - generationStartNanos)
+                }
                 val redefinedClassName: String? = getRedefinedClassName()
                 // `substringAfterLast('.')` in order to support service file names in resources:
                 // META-INF/services/com.mypackage.ByteShortType
                 val generatedClassName =
                         generatedFileName.removeSuffix(".java").substringAfterLast('.')
                 if (redefinedClassName != null && generatedClassName != redefinedClassName) {
-                    log.info("Class name redefined: {} -> {}",
+                    log.debug("Class name redefined: {} -> {}",
                             generatedClassName, redefinedClassName)
                     generatedFileName =
                             generatedFileName.replace(generatedClassName, redefinedClassName)
                     generatedFile = targetDir.resolve(generatedFileName)
                 }
-                if (generatedFile.exists()) {
+                if (mayRedefineClassName && !isHot(generatedFileName,
+                                relativeOutputPath(targetDir, generatedFileName), target)) {
+                    if (cacheKey != null) {
+                        outputCache!!.put(cacheKey, generatedFileName, generatedContent)
+                    }
+                    filterCold(sourceFile, target, templateMetrics)
+                    return@Callable
+                }
+                outputRecorder?.invoke(relativeOutputPath(targetDir, generatedFileName),
+                        specializedPath, target)
+                if (cacheKey != null) {
+                    outputCache!!.put(cacheKey, generatedFileName, generatedContent)
+                }
+                if (sink == null && generatedFile.exists()) {
                     if (generatedFile.isDirectory) {
                         throw IllegalStateException(
                                 "$generatedFileName in $targetDir is a directory, " +
                                         "$mainContext, $target, $sourceFileName")
                     }
+                    val compareStartNanos = System.nanoTime()
+                    val compareEvent = JfrEvents.OUTPUT_COMPARE.begin()
                     val targetContent = generatedFile.readText()
-                    if (generatedContent == targetContent) {
-                        log.warn("Already generated: {}", generatedFileName)
+                    val unchanged = generatedContent == targetContent
+                    compareEvent?.set(templatePath, generatedFileName,
+                            generatedContent.length.toLong(), unchanged)?.commit()
+                    if (unchanged) {
+                        log.debug("Already generated: {}", generatedFileName)
+                        templateMetrics?.unchanged?.increment()
+                        notifyListeners {
+                            it.outputUnchanged(sourceFile, generatedFile,
+                                    System.nanoTime() - compareStartNanos)
+                        }
                         return@Callable
                     }
                 }
-                writeFile(generatedFile, generatedContent)
-                log.info("Wrote: {}", generatedFileName)
+                val writeStartNanos = System.nanoTime()
+                val writeEvent = JfrEvents.OUTPUT_WRITE.begin()
+                if (sink != null) {
+                    sink.write(generatedFile.invariantSeparatorsPath, generatedContent)
+                } else {
+                    writeFile(generatedFile, generatedContent)
+                }
+                writeEvent?.set(templatePath, generatedFileName,
+                        generatedContent.length.toLong(), false)?.commit()
+                log.debug("Wrote: {}", generatedFileName)
+                notifyListeners {
+                    it.outputWritten(sourceFile, generatedFile, false,
+                            System.nanoTime() - writeStartNanos)
+                }
+                templateMetrics?.written?.increment()
             }))
         }
         ForkJoinTasks.invokeAll(contextGenerationTasks)
+        templateMetrics?.nanos = System.nanoTime() - startNanos
+        if (summaryEvent != null) {
+            val t = templateMetrics!!
+            summaryEvent.set(templatePath, t.contexts, t.generated.sum(), t.fromCache.sum(),
+                    t.unchanged.sum(), t.written.sum()).commit()
+        }
+    }
+
+    internal fun findSkippedProcessors(content: String, mainContext: Context,
+                                      targetContexts: List<Context>): Set<TemplateProcessor>? {
+        if (!processorSkipping)
+            return null
+        val text = StringBuilder(content)
+        val contexts = ArrayList(targetContexts)
+        contexts.add(mainContext)
+        for (context in contexts) {
+            for ((_, option) in context) {
+                text.append('\n').append(option.toString())
+            }
+        }
+        val lowerCaseText = text.toString().toLowerCase(Locale.ROOT)
+        var skipped: MutableSet<TemplateProcessor>? = null
+        for (processor in processors) {
+            val markers = processor.triggerMarkers() ?: continue
+            if (markers.none { lowerCaseText.contains(it.toLowerCase(Locale.ROOT)) }) {
+                if (skipped == null)
+                    skipped = HashSet()
+                skipped.add(processor)
+            }
+        }
+        return skipped
     }
 
     private fun parseAndCheckExplicitContext(explicitContext: String, sourceFile: File):
@@ -419,7 +1401,131 @@ class Generator {
     }
 
     @Throws(IOException::class)
-    internal fun writeFile(file: File, content: String) {
+    internal fun writeOutput(path: String, content: String) {
+        if (previewing.get() == true) {
+            // Not a part of the previewed specialization
+            return
+        }
+        val sink = runSink
+        if (sink != null) {
+            sink.write(path, content)
+            partitionRecorder?.record(File(path))
+        } else {
+            val file = target!!.resolve(path)
+            writeFile(file, content)
+            partitionRecorder?.record(file)
+        }
+    }
+
+    private fun relativeOutputPath(targetDir: File, fileName: String): String {
+        val file = targetDir.resolve(fileName)
+        return if (runSink != null) {
+            file.invariantSeparatorsPath
+        } else {
+            file.relativeTo(target!!).invariantSeparatorsPath
+        }
+    }
+
+    private fun isRetained(fileName: String, path: String): Boolean {
+        val retained = retainedOutputs ?: return true
+        if (!fileName.endsWith(".java") || fileName == "package-info.java")
+            return true
+        return retained.contains(path)
+    }
+
+    private fun isHot(fileName: String, path: String, target: Context): Boolean {
+        val profile = usageProfile ?: return true
+        if (!fileName.endsWith(".java") || fileName == "package-info.java")
+            return true
+        val defaultDimensions = defaultContextDimensions()
+        if (target.none { (dim, option) ->
+                    option is PrimitiveType && dim !in defaultDimensions }) {
+            // Generic fallback specialization
+            return true
+        }
+        val className = path.removeSuffix(".java").replace('/', '.')
+        return profile.count(className) >= hotnessThreshold
+    }
+
+    private fun filterCold(sourceFile: File, target: Context,
+                           templateMetrics: GenerationMetrics.TemplateMetrics?) {
+        log.debug("Context filtered as cold: {}", target)
+        templateMetrics?.filteredAsCold?.increment()
+        notifyListeners {
+            it.contextFiltered(sourceFile, target, GenerationListener.FilterReason.COLD)
+        }
+    }
+
+    internal fun defaultContextDimensions(): Set<String> {
+        return defaultContext!!.dimensions()
+    }
+
+    private fun isInPartition(sourceFile: File, templatePath: String, generatedFileName: String,
+                              target: Context,
+                              templateMetrics: GenerationMetrics.TemplateMetrics?): Boolean {
+        val recorder = partitionRecorder ?: return true
+        if (PartitionPlan.unitKey(templatePath, generatedFileName) in recorder.units)
+            return true
+        log.debug("Context is in another partition: {}", target)
+        templateMetrics?.let { it.filteredByPartition++ }
+        notifyListeners {
+            it.contextFiltered(sourceFile, target, GenerationListener.FilterReason.PARTITION)
+        }
+        return false
+    }
+
+    private fun mayHaveDirectives(rawBytes: ByteArray?, content: String?): Boolean {
+        if (content != null)
+            return content.contains("/*") || content.contains("//")
+        // Directives start with ASCII chars, which are never parts of multi-byte UTF-8 chars
+        for (i in 0 until rawBytes!!.size - 1) {
+            if (rawBytes[i] == '/'.toByte()) {
+                val next = rawBytes[i + 1]
+                if (next == '*'.toByte() || next == '/'.toByte())
+                    return true
+            }
+        }
+        return false
+    }
+
+    @Throws(IOException::class)
+    private fun copyVerbatim(sourceFile: File, rawBytes: ByteArray?, givenContent: String?,
+                             targetDir: File) {
+        val target = defaultContext!!
+        val generatedFile = targetDir.resolve(sourceFile.name)
+        val path = relativeOutputPath(targetDir, sourceFile.name)
+        outputRecorder?.invoke(path, path, target)
+        val writeStartNanos = System.nanoTime()
+        val sink = runSink
+        if (sink != null) {
+            sink.write(generatedFile.invariantSeparatorsPath,
+                    givenContent ?: String(rawBytes!!, Charsets.UTF_8))
+        } else {
+            val bytes = rawBytes ?: givenContent!!.toByteArray(Charsets.UTF_8)
+            if (generatedFile.isFile && generatedFile.length() == bytes.size.toLong() &&
+                    Arrays.equals(generatedFile.readBytes(), bytes)) {
+                log.debug("Already generated: {}", sourceFile.name)
+                notifyListeners {
+                    it.outputUnchanged(sourceFile, generatedFile,
+                            System.nanoTime() - writeStartNanos)
+                }
+                return
+            }
+            // Replaced rather than overwritten in place, see writeFile()
+            Files.deleteIfExists(generatedFile.toPath())
+            generatedFile.writeBytes(bytes)
+        }
+        log.debug("Copied: {}", sourceFile.name)
+        notifyListeners {
+            it.outputWritten(sourceFile, generatedFile, false, System.nanoTime() - writeStartNanos)
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeFile(file: File, content: String) {
+        // The file may be a hard link to an OutputCache entry, it must be replaced rather than
+        // overwritten in place
+        Files.deleteIfExists(file.toPath())
         file.writeText(content)
     }
 
@@ -457,136 +1563,106 @@ class Generator {
 
     inner class BlocksProcessor : TemplateProcessor() {
 
+        private val compiledTemplates = ConcurrentHashMap<CompiledBlocksKey, CompiledBlocks>()
+
         override fun priority(): Int {
             return BLOCKS_PROCESSOR_PRIORITY
         }
 
-        override fun process(sb: StringBuilder, source: Context, target: Context, template: String) {
-            val blockStartMatcher = ANY_BLOCK_PART_P.matcher(template)
-            var prevBlockEndPos = 0
-            blockSearch@ while (blockStartMatcher.find()) {
-                val blockDefPos = blockStartMatcher.start()
-                val linearBlock = template.substring(prevBlockEndPos, blockDefPos)
-                postProcess(sb, source, target, linearBlock)
-                val blockStart = blockStartMatcher.group()
-                var condM = COND_START_P.matcher(blockStart)
-                if (condM.matches()) {
-                    var prevBranchCond = Condition.parseCheckedCondition(
-                            getBlockGroup(condM.group(), COND_PART_BLOCK_P, "condition"),
-                            dimensionsParser!!, source,
-                            template, blockStartMatcher.start())
-                    var branchStartPos = blockStartMatcher.end()
-                    var nest = 0
-                    condM = COND_PART_P.matcher(template)
-                    condM.region(branchStartPos, template.length)
-                    while (condM.find()) {
-                        var condPart = condM.group()
-                        if (COND_START_P.matcher(condPart).matches()) {
-                            nest++
-                        } else if (nest != 0) {
-                            if (COND_END_P.matcher(condPart).matches()) {
-                                nest--
-                            }
-                            // no special processing of nested `elif` branches
-                        } else {
-                            if (prevBranchCond.check(target)) {
-                                // condition of the previous `if` or `elif` branch
-                                // triggers on the context
-                                val branchEndPos = condM.start()
-                                val block = template.substring(branchStartPos, branchEndPos)
-                                process(sb, source, target, block)
-                                if (COND_END_P.matcher(condPart).matches()) {
-                                    prevBlockEndPos = condM.end()
-                                    blockStartMatcher.region(prevBlockEndPos, template.length)
-                                    continue@blockSearch
-                                } else {
-                                    // skip the rest `elif` branches
-                                    while (condM.find()) {
-                                        condPart = condM.group()
-                                        if (COND_END_P.matcher(condPart).matches()) {
-                                            if (nest == 0) {
-                                                prevBlockEndPos = condM.end()
-                                                blockStartMatcher.region(
-                                                        prevBlockEndPos, template.length)
-                                                continue@blockSearch
-                                            } else {
-                                                nest--
-                                            }
-                                        } else if (COND_START_P.matcher(condPart).matches()) {
-                                            nest++
-                                        }
-                                    }
-                                    throw near(template, blockDefPos, "`if` block is not closed")
-                                }
-                            } else {
-                                if (COND_END_P.matcher(condPart).matches()) {
-                                    prevBlockEndPos = condM.end()
-                                    blockStartMatcher.region(prevBlockEndPos, template.length)
-                                    continue@blockSearch
-                                } else {
-                                    // `elif` branch
-                                    prevBranchCond = Condition.parseCheckedCondition(
-                                            getBlockGroup(condM.group(), COND_PART_BLOCK_P,
-                                                    "condition"),
-                                            dimensionsParser!!, source,
-                                            template, condM.start())
-                                    branchStartPos = condM.end()
-                                }
-                            }
-                        }
+        override fun configurationKey(): String? {
+            return ""
+        }
+
+        override fun process(sb: StringBuilder, source: Context, target: Context,
+                             template: String) {
+            val key = CompiledBlocksKey(currentSourceFile(), source.dimensions(), template)
+            var compiled = compiledTemplates[key]
+            if (compiled == null) {
+                if (compiledTemplates.size >= MAX_COMPILED_TEMPLATES) {
+                    // Bounds the memory if many templates are generated concurrently, or
+                    // generate(source, target, template) is called directly
+                    compiledTemplates.clear()
+                }
+                compiled = CompiledBlocks.compile(template)
+                compiledTemplates[key] = compiled
+            }
+            render(sb, source, target, compiled)
+        }
+
+        internal fun clearCompiledTemplates() {
+            compiledTemplates.clear()
+        }
+
+        private fun render(sb: StringBuilder, source: Context, target: Context,
+                           compiled: CompiledBlocks) {
+            val template = compiled.template
+            for (part in compiled.parts) {
+                when (part) {
+                    is CompiledBlocks.LinearBlock -> {
+                        postProcess(sb, source, target, template.substring(part.start, part.end))
                     }
-                    throw near(template, blockDefPos, "`if` block is not closed")
-                } else {
-                    // `with` block
-                    var contextM = CONTEXT_START_P.matcher(blockStart)
-                    if (contextM.matches()) {
-                        val additionalDims = dimensionsParser!!.parseForContext(
-                                getBlockGroup(contextM.group(), CONTEXT_START_BLOCK_P,
-                                        "dimensions"))
-                        val blockStartPos = blockStartMatcher.end()
-                        var nest = 0
-                        contextM = CONTEXT_PART_P.matcher(template)
-                        contextM.region(blockStartPos, template.length)
-                        while (contextM.find()) {
-                            val contextPart = contextM.group()
-                            if (CONTEXT_END_P.matcher(contextPart).matches()) {
-                                if (nest == 0) {
-                                    val blockEndPos = contextM.start()
-                                    val block = template.substring(blockStartPos, blockEndPos)
-                                    val addContexts = additionalDims.generateContexts()
-                                    val newSource = source.join(addContexts[0])
-                                    for (addCxt in addContexts) {
-                                        val newTarget = target.join(addCxt)
-                                        // if addContext size is 1, this context is not
-                                        // for generation. For example to prevent
-                                        // unwanted generation:
-                                        // /*with int|long dim*/ generated int 1 /*with int elem*/
-                                        // always int /*endwith*/ generated int 2 /*endwith*/
-                                        // -- for example. We don't filter such contexts.
-                                        if (addContexts.size == 1 || checkContext(newTarget)) {
-                                            process(sb, newSource, newTarget, block)
-                                        }
-                                    }
-                                    prevBlockEndPos = contextM.end()
-                                    blockStartMatcher.region(prevBlockEndPos, template.length)
-                                    continue@blockSearch
-                                } else {
-                                    // nesting `with` end
-                                    nest--
-                                }
-                            } else {
-                                // nesting `with` start
-                                nest++
+                    is CompiledBlocks.IfBlock -> {
+                        countMatch()
+                        renderIf(sb, source, target, template, part)
+                    }
+                    is CompiledBlocks.WithBlock -> {
+                        countMatch()
+                        val addContexts = part.contexts
+                        val newSource = source.join(addContexts[0])
+                        for (addCxt in addContexts) {
+                            val newTarget = target.join(addCxt)
+                            // if addContext size is 1, this context is not
+                            // for generation. For example to prevent
+                            // unwanted generation:
+                            // /*with int|long dim*/ generated int 1 /*with int elem*/
+                            // always int /*endwith*/ generated int 2 /*endwith*/
+                            // -- for example. We don't filter such contexts.
+                            if (addContexts.size == 1 || checkContext(newTarget)) {
+                                render(sb, newSource, newTarget, part.body())
                             }
                         }
-                    } else {
-                        throw near(template, blockDefPos,
-                                "Block end or `elif` branch without start")
                     }
+                    is CompiledBlocks.MalformedBlock -> throw part.exception
+                }
+            }
+        }
+
+        private fun renderIf(sb: StringBuilder, source: Context, target: Context,
+                             template: String, ifBlock: CompiledBlocks.IfBlock) {
+            val branches = ifBlock.branches
+            for ((i, branch) in branches.withIndex()) {
+                var condition = branch.parsedCondition
+                if (condition == null) {
+                    condition = Condition.parseCheckedCondition(branch.condition,
+                            dimensionsParser!!, source, template, branch.conditionPos)
+                    branch.parsedCondition = condition
+                }
+                if (!ifBlock.closed && i == branches.size - 1) {
+                    throw near(template, ifBlock.start, "`if` block is not closed")
+                }
+                if (condition!!.check(target)) {
+                    // condition of the `if` or `elif` branch triggers on the context
+                    render(sb, source, target, branch.body())
+                    if (!ifBlock.closed) {
+                        throw near(template, ifBlock.start, "`if` block is not closed")
+                    }
+                    return
                 }
             }
-            val tail = template.substring(prevBlockEndPos)
-            postProcess(sb, source, target, tail)
+        }
+    }
+
+    private class CompiledBlocksKey(
+            val sourceFile: File?, val sourceDimensions: Set<String>, val template: String) {
+
+        override fun equals(other: Any?): Boolean {
+            return other is CompiledBlocksKey && sourceFile == other.sourceFile &&
+                    sourceDimensions == other.sourceDimensions && template == other.template
+        }
+
+        override fun hashCode(): Int {
+            return (sourceFile.hashCode() * 31 + sourceDimensions.hashCode()) * 31 +
+                    template.hashCode()
         }
     }
 
@@ -594,7 +1670,7 @@ class Generator {
         private val log = LoggerFactory.getLogger(Generator::class.java)
 
         @JvmStatic
-        private val checkingDimensionsParser: Dimensions.Parser = Dimensions.Parser(emptyList())
+        internal val checkingDimensionsParser: Dimensions.Parser = Dimensions.Parser(emptyList())
 
         private val currentSource = ThreadLocal<File>()
         fun setCurrentSourceFile(source: File) {
@@ -627,6 +1703,30 @@ class Generator {
             return redefinedClassName.get()
         }
 
+        private val skippedProcessors = ThreadLocal<Set<TemplateProcessor>?>()
+
+        internal fun setSkippedProcessors(processors: Set<TemplateProcessor>?) {
+            skippedProcessors.set(processors)
+        }
+
+        @JvmStatic
+        fun skippedProcessors(): Set<TemplateProcessor>? {
+            return skippedProcessors.get()
+        }
+
+        private val previewing = ThreadLocal<Boolean>()
+
+        private val currentMetrics = ThreadLocal<GenerationMetrics?>()
+
+        private fun setCurrentMetrics(metrics: GenerationMetrics?) {
+            currentMetrics.set(metrics)
+        }
+
+        @JvmStatic
+        fun currentMetrics(): GenerationMetrics? {
+            return currentMetrics.get()
+        }
+
         @JvmStatic
         fun compileBlock(insideBlockRegex: String, keyword: String): CheckingPattern {
             val checkingBlockBlockCommentOpening = "/\\*\\s*$keyword[^/*]*+[*/]/"
@@ -649,7 +1749,7 @@ class Generator {
             return RegexpUtils.compile("\\s*/[*/]\\s*$insideBlockRegex\\s*[*/]/\\s*")
         }
 
-        private fun getBlockGroup(block: String, pattern: Pattern, group: String): String {
+        internal fun getBlockGroup(block: String, pattern: Pattern, group: String): String {
             val m = pattern.matcher(block)
             if (m.matches()) {
                 return m.group(group)
@@ -660,5 +1760,23 @@ class Generator {
 
 
         const val BLOCKS_PROCESSOR_PRIORITY: Int = TemplateProcessor.DEFAULT_PRIORITY + 100
+
+        /** Option substitution and `/* with */` and `/* if */` blocks */
+        @JvmField
+        val RESOURCES_PROCESSOR_PROFILE: List<String> =
+                Collections.unmodifiableList(listOf("BlocksProcessor", "OptionProcessor"))
+
+        internal fun parsePartition(partition: String): Pair<Int, Int> {
+            val parts = partition.trim().split('/')
+            val i = parts.getOrNull(0)?.toIntOrNull()
+            val n = parts.getOrNull(1)?.toIntOrNull()
+            if (parts.size != 2 || i == null || n == null || n <= 0 || i < 1 || i > n) {
+                throw IllegalArgumentException(
+                        "Partition should be given as i/N, 1 <= i <= N, $partition given")
+            }
+            return Pair(i, n)
+        }
+
+        private const val MAX_COMPILED_TEMPLATES = 1024
     }
 }
@@ -46,6 +46,16 @@ public final class GenericsProcessor extends TemplateProcessor {
 
     private static final Pattern UNBOUND_P = RegexpUtils.compile("/[*/]<\\?>[*/]/");
 
+    @Override
+    protected List<String> triggerMarkers() {
+        return Arrays.asList("/*<", "//<");
+    }
+
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
     @Override
     protected void process(StringBuilder sb, Context source, Context target, String template) {
         List<Map.Entry<String, Option>> targetOptions = getViewOptions(target);
@@ -16,8 +16,7 @@
 
 package io.timeandspace.jpsg;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import static java.lang.String.format;
@@ -25,13 +24,13 @@ import static java.lang.String.format;
 
 final class IntermediateOption {
 
-    private static final Map<String, IntermediateOption> cache =
-            new HashMap<String, IntermediateOption>();
+    private static final ConcurrentHashMap<String, IntermediateOption> cache =
+            new ConcurrentHashMap<>();
 
     public static IntermediateOption of(String dim) {
         IntermediateOption opt;
         if ((opt = cache.get(dim)) == null) {
-            cache.put(dim, opt = new IntermediateOption(dim));
+            opt = cache.computeIfAbsent(dim, IntermediateOption::new);
         }
         return opt;
     }
@@ -34,6 +34,11 @@ public final class Jdk8FunctionReplacer extends TemplateProcessor {
         return PRIORITY;
     }
 
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
     private static final SimpleOption JDK8 = new SimpleOption("JDK8");
 
     @Override
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.timeandspace.jpsg;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * JDK Flight Recorder events of generation phases, created reflectively so that JPSG works without
+ * JFR. {@link EventType#begin()} returns {@code null} if the event is not enabled.
+ */
+final class JfrEvents {
+    private static final Logger LOG = LoggerFactory.getLogger(JfrEvents.class);
+
+    private static final @Nullable Jfr JFR = Jfr.load();
+
+    static final EventType TEMPLATE_READ = new EventType("TemplateRead", "Template Read",
+            "Reading of a template file", null,
+            new Field(String.class, "template", "Template"),
+            new Field(long.class, "chars", "Chars"));
+
+    static final EventType CONTEXT_ENUMERATION = new EventType("ContextEnumeration",
+            "Context Enumeration",
+            "Enumeration of the target contexts of a template file and their filtering", null,
+            new Field(String.class, "template", "Template"),
+            new Field(int.class, "contexts", "Contexts"),
+            new Field(int.class, "filtered", "Filtered Contexts"));
+
+    /** Only invocations longer than a millisecond are recorded by default */
+    static final EventType PROCESSING = new EventType("Processing", "Processing",
+            "Processing of a template by a processor and the processors later in the chain",
+            "1 ms",
+            new Field(String.class, "processor", "Processor"),
+            new Field(String.class, "template", "Template"),
+            new Field(String.class, "context", "Context"),
+            new Field(long.class, "inputChars", "Input Chars"),
+            new Field(long.class, "outputChars", "Output Chars"));
+
+    static final EventType OUTPUT_COMPARE = new EventType("OutputCompare", "Output Compare",
+            "Comparison of a generated file with the existing file", null,
+            new Field(String.class, "template", "Template"),
+            new Field(String.class, "file", "File"),
+            new Field(long.class, "chars", "Chars"),
+            new Field(boolean.class, "unchanged", "Unchanged"));
+
+    static final EventType OUTPUT_WRITE = new EventType("OutputWrite", "Output Write",
+            "Writing of a generated file, or linking it from the output cache", null,
+            new Field(String.class, "template", "Template"),
+            new Field(String.class, "file", "File"),
+            new Field(long.class, "chars", "Chars"),
+            new Field(boolean.class, "fromCache", "From Cache"));
+
+    static final EventType TEMPLATE_GENERATION = new EventType("TemplateGeneration",
+            "Template Generation", "Summary of generation of a template file", null,
+            new Field(String.class, "template", "Template"),
+            new Field(int.class, "contexts", "Contexts"),
+            new Field(long.class, "generated", "Generated"),
+            new Field(long.class, "fromCache", "From Cache"),
+            new Field(long.class, "unchanged", "Unchanged"),
+            new Field(long.class, "written", "Written"));
+
+    private static final class Field {
+        final Class<?> type;
+        final String name;
+        final String label;
+
+        Field(Class<?> type, String name, String label) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+        }
+    }
+
+    private static final class Jfr {
+        final Constructor<?> annotationElement;
+        final Constructor<?> valueDescriptor;
+        final Method createFactory;
+        final Class<? extends Annotation> name;
+        final Class<? extends Annotation> label;
+        final Class<? extends Annotation> description;
+        final Class<? extends Annotation> category;
+        final Class<? extends Annotation> threshold;
+        final MethodHandle newEvent;
+        final MethodHandle getEventType;
+        final MethodHandle isEnabled;
+        final MethodHandle begin;
+        final MethodHandle shouldCommit;
+        final MethodHandle commit;
+        final MethodHandle set;
+
+        private Jfr() throws ReflectiveOperationException {
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor")
+                    .getConstructor(Class.class, String.class, List.class);
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            createFactory = eventFactory.getMethod("create", List.class, List.class);
+            name = annotation("jdk.jfr.Name");
+            label = annotation("jdk.jfr.Label");
+            description = annotation("jdk.jfr.Description");
+            category = annotation("jdk.jfr.Category");
+            threshold = annotation("jdk.jfr.Threshold");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> eventType = Class.forName("jdk.jfr.EventType");
+            MethodType objectToObject = MethodType.methodType(Object.class, Object.class);
+            newEvent = lookup.findVirtual(eventFactory, "newEvent", MethodType.methodType(event))
+                    .asType(objectToObject);
+            getEventType = lookup.findVirtual(eventFactory, "getEventType",
+                    MethodType.methodType(eventType)).asType(objectToObject);
+            isEnabled = lookup.findVirtual(eventType, "isEnabled",
+                    MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            shouldCommit = lookup.findVirtual(event, "shouldCommit",
+                    MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            set = lookup.findVirtual(event, "set",
+                    MethodType.methodType(void.class, int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class,
+                            Object.class));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Class<? extends Annotation> annotation(String className)
+                throws ClassNotFoundException {
+            return (Class<? extends Annotation>) Class.forName(className);
+        }
+
+        static @Nullable Jfr load() {
+            try {
+                return new Jfr();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOG.debug("JFR events are not available: {}", e.toString());
+                return null;
+            }
+        }
+
+        Object annotationElement(Class<? extends Annotation> type, Object value)
+                throws ReflectiveOperationException {
+            return annotationElement.newInstance(type, value);
+        }
+    }
+
+    static final class EventType {
+        private final @Nullable Object factory;
+        private final @Nullable Object eventType;
+
+        EventType(String name, String label, String description, @Nullable String threshold,
+                Field... fields) {
+            Object factory = null;
+            Object eventType = null;
+            if (JFR != null) {
+                try {
+                    List<Object> annotations = new ArrayList<>();
+                    annotations.add(
+                            JFR.annotationElement(JFR.name, "io.timeandspace.jpsg." + name));
+                    annotations.add(JFR.annotationElement(JFR.label, label));
+                    annotations.add(JFR.annotationElement(JFR.description, description));
+                    annotations.add(JFR.annotationElement(JFR.category, new String[] {"JPSG"}));
+                    if (threshold != null) {
+                        annotations.add(JFR.annotationElement(JFR.threshold, threshold));
+                    }
+                    List<Object> descriptors = new ArrayList<>();
+                    for (Field field : fields) {
+                        List<Object> fieldAnnotations = Collections.singletonList(
+                                JFR.annotationElement(JFR.label, field.label));
+                        descriptors.add(JFR.valueDescriptor.newInstance(
+                                field.type, field.name, fieldAnnotations));
+                    }
+                    factory = JFR.createFactory.invoke(null, annotations, descriptors);
+                    eventType = (Object) JFR.getEventType.invokeExact(factory);
+                } catch (Throwable e) {
+                    LOG.debug("Failed to create JFR event {}: {}", name, e.toString());
+                    factory = null;
+                    eventType = null;
+                }
+            }
+            this.factory = factory;
+            this.eventType = eventType;
+        }
+
+        @Nullable Event begin() {
+            if (eventType == null) {
+                return null;
+            }
+            try {
+                // The fields are non-null if eventType is non-null
+                //noinspection ConstantConditions
+                if (!(boolean) JFR.isEnabled.invokeExact(eventType)) {
+                    return null;
+                }
+                Object event = (Object) JFR.newEvent.invokeExact(factory);
+                JFR.begin.invokeExact(event);
+                return new Event(event);
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    static final class Event {
+        private final Object event;
+
+        private Event(Object event) {
+            this.event = event;
+        }
+
+        boolean shouldCommit() {
+            try {
+                //noinspection ConstantConditions
+                return (boolean) JFR.shouldCommit.invokeExact(event);
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        Event set(Object... values) {
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    //noinspection ConstantConditions
+                    JFR.set.invokeExact(event, i, values[i]);
+                }
+                return this;
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void commit() {
+            try {
+                //noinspection ConstantConditions
+                JFR.commit.invokeExact(event);
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private JfrEvents() {}
+}
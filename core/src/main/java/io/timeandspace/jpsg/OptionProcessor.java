@@ -38,6 +38,11 @@ public final class OptionProcessor extends TemplateProcessor {
         return PRIORITY;
     }
 
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
     @Override
     protected void process(StringBuilder sb, Context source, Context target, String template) {
         for (Map.Entry<String, Option> e : source) {
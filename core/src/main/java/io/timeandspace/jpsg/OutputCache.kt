@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.security.MessageDigest
+import java.util.Arrays
+
+/**
+ * Content-addressed on-disk cache of generated specializations, shared between generator runs and
+ * processes. Least recently used entries are evicted in [trim]. The modification time of the
+ * `.out` file of an entry is never changed, because target files may be hard links to it.
+ */
+class OutputCache(val dir: File, val maxSize: Long) {
+
+    class Entry internal constructor(val fileName: String, internal val content: File)
+
+    fun key(vararg parts: String): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        for (part in parts) {
+            digest.update(part.toByteArray(Charsets.UTF_8))
+            // Separator, not to make keys of ("ab", "c") and ("a", "bc") parts equal
+            digest.update(0)
+        }
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    fun get(key: String): Entry? {
+        val content = contentFile(key)
+        val name = nameFile(key)
+        if (!content.isFile || !name.isFile) {
+            return null
+        }
+        return try {
+            // Not content.setLastModified(), see the class doc
+            name.setLastModified(System.currentTimeMillis())
+            Entry(name.readText(), content)
+        } catch (e: IOException) {
+            log.debug("Failed to read cache entry {}", key, e)
+            null
+        }
+    }
+
+    fun put(key: String, fileName: String, content: String) {
+        try {
+            dir.mkdirs()
+            // Content is moved in place first, so that get() never finds a name without content
+            writeAtomically(contentFile(key), content)
+            writeAtomically(nameFile(key), fileName)
+        } catch (e: IOException) {
+            // The cache is an optimization, failing to populate it must not fail generation
+            log.warn("Failed to write cache entry {} to {}", key, dir, e)
+        }
+    }
+
+    @Throws(IOException::class)
+    fun materialize(entry: Entry, target: File) {
+        val targetPath = target.toPath()
+        Files.deleteIfExists(targetPath)
+        try {
+            Files.createLink(targetPath, entry.content.toPath())
+        } catch (e: FileAlreadyExistsException) {
+            // Another task has just materialized the same file
+        } catch (e: IOException) {
+            Files.copy(entry.content.toPath(), targetPath, REPLACE_EXISTING)
+        } catch (e: UnsupportedOperationException) {
+            Files.copy(entry.content.toPath(), targetPath, REPLACE_EXISTING)
+        }
+    }
+
+    fun isMaterializedAs(entry: Entry, target: File): Boolean {
+        return try {
+            if (!target.isFile)
+                return false
+            if (Files.isSameFile(entry.content.toPath(), target.toPath()))
+                return true
+            target.length() == entry.content.length() &&
+                    Arrays.equals(target.readBytes(), entry.content.readBytes())
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    fun trim() {
+        val files = dir.listFiles() ?: return
+        val entries = files.filter { it.name.endsWith(CONTENT_SUFFIX) }
+                .map { content ->
+                    val key = content.name.removeSuffix(CONTENT_SUFFIX)
+                    // lastModified() is 0 if the name is not written yet or already evicted
+                    Pair(content, Math.max(nameFile(key).lastModified(), 0L))
+                }
+                .sortedBy { it.second }
+        var totalSize = entries.sumByLong { it.first.length() }
+        for ((content, _) in entries) {
+            if (totalSize <= maxSize)
+                break
+            totalSize -= content.length()
+            val key = content.name.removeSuffix(CONTENT_SUFFIX)
+            nameFile(key).delete()
+            content.delete()
+            log.debug("Evicted cache entry {}", key)
+        }
+    }
+
+    private fun contentFile(key: String) = dir.resolve(key + CONTENT_SUFFIX)
+
+    private fun nameFile(key: String) = dir.resolve(key + NAME_SUFFIX)
+
+    @Throws(IOException::class)
+    private fun writeAtomically(file: File, content: String) {
+        val tmp = File.createTempFile(file.name, ".tmp", dir)
+        try {
+            tmp.writeText(content)
+            Files.move(tmp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING)
+        } finally {
+            tmp.delete()
+        }
+    }
+
+    private inline fun <T> Iterable<T>.sumByLong(selector: (T) -> Long): Long {
+        var sum = 0L
+        for (element in this) {
+            sum += selector(element)
+        }
+        return sum
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(OutputCache::class.java)
+
+        const val DEFAULT_MAX_SIZE: Long = 1024L * 1024 * 1024
+
+        private const val CONTENT_SUFFIX = ".out"
+        private const val NAME_SUFFIX = ".name"
+
+        /** Snapshot versions are also identified by the location and the time of JPSG classes */
+        @JvmStatic
+        val jpsgVersion: String by lazy {
+            val version: String? = Generator::class.java.`package`?.implementationVersion
+            if (version != null && !version.endsWith("-SNAPSHOT")) {
+                version
+            } else {
+                val build = try {
+                    val location = Generator::class.java.protectionDomain.codeSource.location
+                    val codeSource = File(location.toURI())
+                    "$location@${codeSource.lastModified()}"
+                } catch (e: Exception) {
+                    "unknown"
+                }
+                if (version != null) "$version:$build" else build
+            }
+        }
+    }
+}
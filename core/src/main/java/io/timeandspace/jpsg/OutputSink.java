@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import java.io.IOException;
+
+
+/**
+ * Receives the files generated by {@link Generator#generate(java.util.Map, OutputSink)}, possibly
+ * concurrently, by their paths relative to the target root with {@code /} separators.
+ */
+public interface OutputSink {
+
+    void write(String path, String content) throws IOException;
+
+    default void directoryFinished(String path) throws IOException {}
+}
@@ -27,6 +27,14 @@ class OverviewProcessor : TemplateProcessor() {
         return PRIORITY
     }
 
+    override fun configurationKey(): String? {
+        return ""
+    }
+
+    override fun triggerMarkers(): List<String> {
+        return listOf("overview")
+    }
+
     override fun process(sb: StringBuilder, source: Context, target: Context, template: String) {
         if (Generator.currentSourceFile()!!.endsWith("package-info.java")) {
             val m: CheckingMatcher = OVERVIEW_PATTERN.matcher(template)
@@ -41,7 +49,7 @@ class OverviewProcessor : TemplateProcessor() {
                 val gen = Generator.currentGenerator()
                 overview = gen.generate(source, target, overview)
                 try {
-                    gen.writeFile(gen.target!!.resolve("overview.html"), overview)
+                    gen.writeOutput("overview.html", overview)
                 } catch (e: IOException) {
                     throw RuntimeException(e)
                 }
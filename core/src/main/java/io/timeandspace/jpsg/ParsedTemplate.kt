@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import io.timeandspace.jpsg.GeneratorConstants.COND_START_P
+import io.timeandspace.jpsg.GeneratorConstants.CONTEXT_START_P
+
+/** The `/* with */` dimensions and the `/* if */` condition in the beginning of a template */
+internal class ParsedTemplate(
+        val explicitDimensions: String?,
+        val condition: String?,
+        val conditionStart: Int,
+        val bodyStart: Int) {
+
+    fun body(rawContent: String): String {
+        if (explicitDimensions == null && condition == null) {
+            // Templates without file-level blocks are not trimmed
+            return rawContent
+        }
+        return rawContent.substring(bodyStart).trim { it <= ' ' } + "\n"
+    }
+
+    companion object {
+        fun parse(rawContent: String): ParsedTemplate {
+            var content = rawContent
+            var contentStart = 0
+            var explicitDimensions: String? = null
+            val fileDimsM = CONTEXT_START_P.matcher(content)
+            if (fileDimsM.find() && fileDimsM.start() == 0) {
+                explicitDimensions = fileDimsM.group()
+                contentStart = skipWhitespace(rawContent, fileDimsM.end())
+                content = rawContent.substring(contentStart).trim { it <= ' ' } + "\n"
+            }
+            var condition: String? = null
+            var conditionStart = 0
+            val fileCondM = COND_START_P.matcher(content)
+            if (fileCondM.find() && fileCondM.start() == 0) {
+                condition = fileCondM.group()
+                conditionStart = contentStart
+                // fileCondM.end() may point to the "\n" appended to the content above
+                contentStart = minOf(contentStart + fileCondM.end(), rawContent.length)
+            }
+            return ParsedTemplate(explicitDimensions, condition, conditionStart, contentStart)
+        }
+
+        private fun skipWhitespace(s: String, start: Int): Int {
+            var i = start
+            while (i < s.length && s[i] <= ' ') {
+                i++
+            }
+            return i
+        }
+    }
+}
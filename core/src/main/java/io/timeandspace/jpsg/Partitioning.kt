@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Assigns work units of generation, a template file and a generated file name each, to
+ * [partitions][Generator.setPartition], the most expensive first, each to the least loaded
+ * partition. The plan depends only on the templates and the configuration.
+ */
+internal class PartitionPlan private constructor(
+        val key: String,
+        val partitions: Int,
+        private val assignment: Map<String, Int>) {
+
+    class WorkUnit(val key: String, val cost: Long)
+
+    fun partitionOf(unit: String): Int? {
+        return assignment[unit]
+    }
+
+    fun units(partition: Int): SortedSet<String> {
+        return assignment.filterValues { it == partition }.keys.toSortedSet()
+    }
+
+    companion object {
+        const val UNIT_COST = 1024L
+
+        fun unitKey(templatePath: String, generatedFileName: String): String {
+            return templatePath.replace(File.separatorChar, '/') + '\t' + generatedFileName
+        }
+
+        fun compute(key: String, partitions: Int, units: List<WorkUnit>): PartitionPlan {
+            val sortedUnits = units.sortedWith(
+                    compareByDescending<WorkUnit> { it.cost }.thenBy { it.key })
+            val loads = LongArray(partitions)
+            val assignment = HashMap<String, Int>()
+            for (unit in sortedUnits) {
+                // The first of equally loaded partitions, to be deterministic
+                var partition = 0
+                for (p in 1 until partitions) {
+                    if (loads[p] < loads[partition])
+                        partition = p
+                }
+                loads[partition] += unit.cost
+                assignment[unit.key] = partition + 1
+            }
+            return PartitionPlan(key, partitions, assignment)
+        }
+    }
+}
+
+/** The work units of a completed partition and the paths of the files generated in them */
+internal class PartitionManifest(
+        val partition: Int,
+        val partitions: Int,
+        val planKey: String,
+        val units: SortedSet<String>,
+        val outputs: SortedSet<String>) {
+
+    @Throws(IOException::class)
+    fun write(file: File) {
+        file.absoluteFile.parentFile.mkdirs()
+        file.bufferedWriter().use { w ->
+            w.write("$HEADER $partition/$partitions\n")
+            w.write("plan $planKey\n")
+            for (unit in units) {
+                w.write("unit $unit\n")
+            }
+            for (output in outputs) {
+                w.write("output $output\n")
+            }
+        }
+    }
+
+    companion object {
+        private const val HEADER = "jpsg-partition"
+
+        @Throws(IOException::class)
+        fun read(file: File): PartitionManifest {
+            val lines = file.readLines()
+            val header = lines.firstOrNull()
+            if (header == null || !header.startsWith("$HEADER ")) {
+                throw IOException("$file is not a partition manifest")
+            }
+            val (partition, partitions) = Generator.parsePartition(header.removePrefix("$HEADER "))
+            var planKey: String? = null
+            val units = TreeSet<String>()
+            val outputs = TreeSet<String>()
+            for (line in lines.subList(1, lines.size)) {
+                when {
+                    line.startsWith("plan ") -> planKey = line.removePrefix("plan ")
+                    line.startsWith("unit ") -> units.add(line.removePrefix("unit "))
+                    line.startsWith("output ") -> outputs.add(line.removePrefix("output "))
+                    line.isNotEmpty() -> throw IOException("Unexpected line in $file: $line")
+                }
+            }
+            if (planKey == null)
+                throw IOException("$file doesn't have the plan key")
+            return PartitionManifest(partition, partitions, planKey, units, outputs)
+        }
+    }
+}
+
+internal class PartitionRecorder(
+        val partition: Int, val plan: PartitionPlan, private val targetRoot: File?) :
+        GenerationListener {
+
+    val units: Set<String> = plan.units(partition)
+    private val outputs: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    fun record(output: File) {
+        val path = if (targetRoot != null) output.relativeTo(targetRoot) else output
+        outputs.add(path.invariantSeparatorsPath)
+    }
+
+    override fun outputUnchanged(template: File, output: File, nanos: Long) {
+        record(output)
+    }
+
+    override fun outputWritten(template: File, output: File, fromCache: Boolean, nanos: Long) {
+        record(output)
+    }
+
+    fun manifest(): PartitionManifest {
+        return PartitionManifest(partition, plan.partitions, plan.key, TreeSet(units),
+                TreeSet(outputs))
+    }
+}
+
+/** The result of [Generator.verifyPartitions] */
+class PartitionVerification internal constructor(
+        val partitions: Int,
+        val missingPartitions: List<Int>,
+        val invalidManifests: List<String>,
+        val uncoveredUnits: List<String>,
+        val conflictingOutputs: List<String>,
+        val missingOutputs: List<String>,
+        val staleFiles: List<File>) {
+
+    /** Stale files don't make the generation incomplete */
+    val isComplete: Boolean
+        get() = missingPartitions.isEmpty() && invalidManifests.isEmpty() &&
+                uncoveredUnits.isEmpty() && conflictingOutputs.isEmpty() &&
+                missingOutputs.isEmpty()
+
+    override fun toString(): String {
+        val sb = StringBuilder()
+        sb.append(if (isComplete) "Partitions are complete" else "Partitions are incomplete")
+        sb.append(" ($partitions partitions)")
+        fun appendAll(title: String, items: List<Any>) {
+            if (items.isEmpty())
+                return
+            sb.append("\n").append(title).append(": ").append(items.size)
+            for (item in items.take(MAX_LISTED)) {
+                sb.append("\n  ").append(item)
+            }
+            if (items.size > MAX_LISTED)
+                sb.append("\n  ...")
+        }
+        appendAll("Missing partitions", missingPartitions)
+        appendAll("Invalid manifests", invalidManifests)
+        appendAll("Uncovered units", uncoveredUnits)
+        appendAll("Outputs of several partitions", conflictingOutputs)
+        appendAll("Missing outputs", missingOutputs)
+        appendAll("Stale files", staleFiles)
+        return sb.toString()
+    }
+
+    private companion object {
+        const val MAX_LISTED = 20
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import org.intellij.lang.annotations.RegExp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+
+/**
+ * Cache of compiled {@link Pattern}s for regexes which processors build on the fly, shared between
+ * all generators and threads.
+ */
+public final class PatternCache {
+
+    static final int MAX_SIZE = 4096;
+
+    private static final ConcurrentHashMap<Key, Pattern> patterns = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    public static Pattern compile(@RegExp String regex) {
+        return compile(regex, 0);
+    }
+
+    public static Pattern compile(@RegExp String regex, int flags) {
+        Key key = new Key(regex, flags);
+        Pattern pattern = patterns.get(key);
+        if (pattern != null) {
+            hits.increment();
+            return pattern;
+        }
+        misses.increment();
+        pattern = Pattern.compile(regex, flags);
+        if (patterns.size() >= MAX_SIZE) {
+            patterns.clear();
+        }
+        patterns.put(key, pattern);
+        return pattern;
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    private static final class Key {
+        private final String regex;
+        private final int flags;
+
+        Key(String regex, int flags) {
+            this.regex = regex;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return flags == other.flags && regex.equals(other.regex);
+        }
+
+        @Override
+        public int hashCode() {
+            return regex.hashCode() * 31 + flags;
+        }
+    }
+
+    private PatternCache() {}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+/**
+ * A single specialization of a template generated by [Generator.preview], with the mapping of the
+ * lines of the generated [content] back to the lines of the template. Processors don't track
+ * positions, so the mapping aligns lines which appear once in both, then lines which differ only in
+ * words. Lines are zero-based.
+ */
+class Preview internal constructor(
+        val fileName: String,
+        val target: Context,
+        val content: String,
+        private val template: String) {
+
+    private val templateLineStarts by lazy { lineStarts(template) }
+    private val generatedLineStarts by lazy { lineStarts(content) }
+    private val templateLines: IntArray by lazy {
+        mapLines(template, templateLineStarts, content, generatedLineStarts)
+    }
+
+    val lineCount: Int
+        get() = templateLines.size
+
+    fun templateLine(generatedLine: Int): Int {
+        return templateLines[generatedLine]
+    }
+
+    /** Returns -1 if the template line doesn't appear in the generated content */
+    fun generatedLine(templateLine: Int): Int {
+        return templateLines.indexOf(templateLine)
+    }
+
+    fun templateOffset(generatedOffset: Int): Int {
+        if (generatedOffset < 0 || generatedOffset > content.length)
+            throw IndexOutOfBoundsException("$generatedOffset, content length: ${content.length}")
+        val generatedLine = lineOf(generatedLineStarts, generatedOffset)
+        val templateLine = templateLines[generatedLine]
+        val gStart = generatedLineStarts[generatedLine]
+        val gEnd = lineEnd(content, generatedLineStarts, generatedLine)
+        val tStart = templateLineStarts[templateLine]
+        val tEnd = lineEnd(template, templateLineStarts, templateLine)
+        val gIndent = indent(content, gStart, gEnd)
+        val tIndent = indent(template, tStart, tEnd)
+        if (content.regionMatches(gIndent, template, tIndent, gEnd - gIndent) &&
+                gEnd - gIndent == tEnd - tIndent) {
+            return (tIndent + generatedOffset - gIndent).coerceIn(tStart, tEnd)
+        }
+        return tIndent
+    }
+
+    override fun toString(): String {
+        return "Preview($fileName, $target)"
+    }
+
+    internal companion object {
+        private const val ALIGNMENT_WINDOW = 256
+
+        private val WORD = Regex("\\w+")
+
+        private fun lineStarts(s: String): IntArray {
+            var lines = 1
+            for (c in s) {
+                if (c == '\n')
+                    lines++
+            }
+            val starts = IntArray(lines)
+            var line = 1
+            for (i in s.indices) {
+                if (s[i] == '\n')
+                    starts[line++] = i + 1
+            }
+            return starts
+        }
+
+        private fun lineEnd(s: String, lineStarts: IntArray, line: Int): Int {
+            return if (line + 1 < lineStarts.size) lineStarts[line + 1] - 1 else s.length
+        }
+
+        private fun lineOf(lineStarts: IntArray, offset: Int): Int {
+            val i = lineStarts.binarySearch(offset)
+            return if (i >= 0) i else -i - 2
+        }
+
+        private fun indent(s: String, start: Int, end: Int): Int {
+            var i = start
+            while (i < end && s[i] <= ' ') {
+                i++
+            }
+            return i
+        }
+
+        private fun lines(s: String, lineStarts: IntArray): Array<String> {
+            return Array(lineStarts.size) {
+                s.substring(lineStarts[it], lineEnd(s, lineStarts, it)).trim()
+            }
+        }
+
+        private fun shape(line: String): String {
+            val sb = StringBuilder(line.length)
+            var inWord = false
+            for (c in line) {
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    if (!inWord)
+                        sb.append('w')
+                    inWord = true
+                } else {
+                    inWord = false
+                    if (c > ' ')
+                        sb.append(c)
+                }
+            }
+            return sb.toString()
+        }
+
+        internal fun mapLines(template: String, templateLineStarts: IntArray,
+                              generated: String, generatedLineStarts: IntArray): IntArray {
+            val tLines = lines(template, templateLineStarts)
+            val gLines = lines(generated, generatedLineStarts)
+            val mapping = IntArray(gLines.size) { -1 }
+            alignUniqueLines(tLines, gLines, mapping)
+
+            val tShapes = arrayOfNulls<String>(tLines.size)
+            var g = 0
+            var tFrom = 0
+            while (g < gLines.size) {
+                if (mapping[g] >= 0) {
+                    tFrom = mapping[g] + 1
+                    g++
+                    continue
+                }
+                // The gap between aligned lines: [g, gapEnd) in the generated content and
+                // [tFrom, tTo) in the template
+                var gapEnd = g
+                while (gapEnd < gLines.size && mapping[gapEnd] < 0) {
+                    gapEnd++
+                }
+                val tTo = if (gapEnd < gLines.size) mapping[gapEnd] else tLines.size
+                var cursor = tFrom
+                var lastMapped = tFrom - 1
+                for (gg in g until gapEnd) {
+                    val line = gLines[gg]
+                    var t = -1
+                    if (line.isNotEmpty()) {
+                        val lineShape = shape(line)
+                        t = findLine(tLines, tShapes, line, lineShape, cursor, tTo, false)
+                        if (t < 0)
+                            t = findLine(tLines, tShapes, line, lineShape, 0, cursor, true)
+                        if (t < 0) {
+                            t = findLine(tLines, tShapes, line, lineShape,
+                                    maxOf(cursor, tTo), tLines.size, false)
+                        }
+                    }
+                    if (t >= 0) {
+                        mapping[gg] = t
+                        cursor = t + 1
+                        lastMapped = t
+                    } else {
+                        mapping[gg] = maxOf(lastMapped, 0)
+                    }
+                }
+                g = gapEnd
+            }
+            return mapping
+        }
+
+        /**
+         * Returns the template line in `[from, to)` which is equal to the line, otherwise the one
+         * with the same shape and the most words in common, or -1. The closer lines are preferred.
+         */
+        private fun findLine(tLines: Array<String>, tShapes: Array<String?>, line: String,
+                             lineShape: String, from: Int, to: Int, backward: Boolean): Int {
+            val window = if (backward) {
+                (to - 1 downTo maxOf(from, to - ALIGNMENT_WINDOW))
+            } else {
+                (from until minOf(to, from + ALIGNMENT_WINDOW))
+            }
+            for (t in window) {
+                if (tLines[t] == line)
+                    return t
+            }
+            var words: Set<String>? = null
+            var best = -1
+            var bestCommonWords = -1
+            for (t in window) {
+                if (tLines[t].isEmpty())
+                    continue
+                var tShape = tShapes[t]
+                if (tShape == null) {
+                    tShape = shape(tLines[t])
+                    tShapes[t] = tShape
+                }
+                if (tShape != lineShape)
+                    continue
+                if (words == null)
+                    words = words(line)
+                val commonWords = words(tLines[t]).count { it in words }
+                if (commonWords > bestCommonWords) {
+                    best = t
+                    bestCommonWords = commonWords
+                }
+            }
+            return best
+        }
+
+        private fun words(line: String): Set<String> {
+            return WORD.findAll(line).mapTo(HashSet()) { it.value }
+        }
+
+        private fun alignUniqueLines(tLines: Array<String>, gLines: Array<String>,
+                                     mapping: IntArray) {
+            val tCounts = HashMap<String, Int>()
+            val tIndexes = HashMap<String, Int>()
+            for ((t, line) in tLines.withIndex()) {
+                if (line.isEmpty())
+                    continue
+                tCounts.merge(line, 1, Int::plus)
+                tIndexes[line] = t
+            }
+            val gCounts = HashMap<String, Int>()
+            for (line in gLines) {
+                if (line.isNotEmpty())
+                    gCounts.merge(line, 1, Int::plus)
+            }
+            val candidateG = ArrayList<Int>()
+            for ((g, line) in gLines.withIndex()) {
+                if (line.isNotEmpty() && tCounts[line] == 1 && gCounts[line] == 1)
+                    candidateG.add(g)
+            }
+            val candidateT = IntArray(candidateG.size) { tIndexes[gLines[candidateG[it]]]!! }
+            // Longest increasing subsequence of template lines, by patience sorting
+            val tails = IntArray(candidateT.size)
+            val predecessors = IntArray(candidateT.size)
+            var length = 0
+            for (i in candidateT.indices) {
+                var lo = 0
+                var hi = length
+                while (lo < hi) {
+                    val mid = (lo + hi) ushr 1
+                    if (candidateT[tails[mid]] < candidateT[i]) lo = mid + 1 else hi = mid
+                }
+                predecessors[i] = if (lo > 0) tails[lo - 1] else -1
+                tails[lo] = i
+                if (lo == length)
+                    length++
+            }
+            var i = if (length > 0) tails[length - 1] else -1
+            while (i >= 0) {
+                mapping[candidateG[i]] = candidateT[i]
+                i = predecessors[i]
+            }
+        }
+    }
+}
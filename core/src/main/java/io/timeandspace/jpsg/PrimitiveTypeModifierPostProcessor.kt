@@ -29,6 +29,11 @@ open class PrimitiveTypeModifierPostProcessor(
         return PRIORITY
     }
 
+    /** [typeMapper] and [dimFilter] are arbitrary functions, they couldn't be described */
+    override fun configurationKey(): String? {
+        return null
+    }
+
     override fun process(sb: StringBuilder, source: Context, target: Context, template: String) {
         var template = template
         for ((dim, targetT) in target) {
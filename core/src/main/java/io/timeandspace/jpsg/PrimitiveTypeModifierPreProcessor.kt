@@ -29,6 +29,11 @@ open class PrimitiveTypeModifierPreProcessor(
         return PRIORITY
     }
 
+    /** [typeMapper] and [dimFilter] are arbitrary functions, they couldn't be described */
+    override fun configurationKey(): String? {
+        return null
+    }
+
     override fun process(sb: StringBuilder, source: Context, target: Context, template: String) {
         var template = template
         val modifier = OptionProcessor.modifier(keyword)
@@ -42,7 +47,8 @@ open class PrimitiveTypeModifierPreProcessor(
                 val kwDim = dim + "." + keyword
                 if (targetT is PrimitiveType && typeMapper.apply(targetT) !== targetT) {
                     val modP = OptionProcessor.prefixPattern(modifier, sourceT.standalone)
-                    template = template.replace(modP.toRegex(), IntermediateOption.of(kwDim).standalone)
+                    template = PatternCache.compile(modP).matcher(template)
+                            .replaceAll(IntermediateOption.of(kwDim).standalone)
                 }
                 if (typeMapper.apply(sourceT) !== sourceT) {
                     template = typeMapper.apply(sourceT).intermediateReplace(template, kwDim)
@@ -50,7 +56,7 @@ open class PrimitiveTypeModifierPreProcessor(
             }
         }
         // remove left modifier templates when for example target is object
-        template = template.replace(modifier.toRegex(), "")
+        template = PatternCache.compile(modifier).matcher(template).replaceAll("")
         postProcess(sb, source, target, template)
     }
 
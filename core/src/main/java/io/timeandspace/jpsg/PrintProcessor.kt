@@ -35,11 +35,23 @@ class PrintProcessor : TemplateProcessor() {
         return PRIORITY
     }
 
+    override fun configurationKey(): String? {
+        return ""
+    }
+
+    override fun triggerMarkers(): List<String> {
+        return listOf("print")
+    }
+
     override fun process(
             builder: StringBuilder, source: Context, target: Context, template: String) {
         val valueM = PRINT_PATTERN.matcher(template)
+        if (!valueM.find()) {
+            postProcess(builder, source, target, template)
+            return
+        }
         val sb = StringBuilder()
-        while (valueM.find()) {
+        do {
             val dim = valueM.group("dim")
             val option = target.getOption(dim)
             if (option != null) {
@@ -48,7 +60,7 @@ class PrintProcessor : TemplateProcessor() {
                 throw MalformedTemplateException.near(template, valueM.start(),
                         "Nonexistent dimension: $dim, available dims: $target")
             }
-        }
+        } while (valueM.find())
         valueM.appendTail(sb)
         postProcess(builder, source, target, sb.toString())
     }
@@ -16,6 +16,8 @@
 
 package io.timeandspace.jpsg;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 
@@ -32,6 +34,16 @@ public final class RawModifierProcessor extends TemplateProcessor {
         return PRIORITY;
     }
 
+    @Override
+    protected String configurationKey() {
+        return "";
+    }
+
+    @Override
+    protected List<String> triggerMarkers() {
+        return Collections.singletonList("raw");
+    }
+
     @Override
     protected void process(StringBuilder sb, Context source, Context target, String template) {
         for (Map.Entry<String, Option> e : source) {
@@ -41,11 +53,11 @@ public final class RawModifierProcessor extends TemplateProcessor {
                 PrimitiveType sourceT = (PrimitiveType) e.getValue();
                 String rawP = OptionProcessor.prefixPattern(RAW,
                         "(" + sourceT.className + "|" + sourceT.standalone + ")");
-                template = template.replaceAll(rawP, "Object");
+                template = PatternCache.compile(rawP).matcher(template).replaceAll("Object");
             }
         }
         // remove left modifier templates when for example target is primitive type
-        template = template.replaceAll(RAW, "");
+        template = PatternCache.compile(RAW).matcher(template).replaceAll("");
         postProcess(sb, source, target, template);
     }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.zip.ZipFile
+
+/**
+ * Finds which of the Java sources generated by the [generator] are used by the consuming code, for
+ * [Generator.setRetainedOutputs]. Sources are analyzed by identifiers, so they may retain more
+ * classes than necessary. Class files miss the classes whose compile-time constants are inlined by
+ * javac, so [addConsumerSources] should be used when the consumers may use such constants.
+ */
+class ReachabilityAnalysis(private val generator: Generator) {
+
+    class Result internal constructor(
+            val retainedOutputs: SortedSet<String>,
+            val generatedClasses: Int,
+            val reachableClasses: Int,
+            /** Conditions for [Generator.exclude] which exclude only unreachable outputs */
+            val excludeConditions: List<String>) {
+
+        @Throws(IOException::class)
+        fun writeRetainedOutputs(file: File) {
+            file.absoluteFile.parentFile.mkdirs()
+            file.writeText(retainedOutputs.joinToString("\n", postfix = "\n"))
+        }
+
+        override fun toString(): String {
+            return "$reachableClasses of $generatedClasses generated classes are reachable"
+        }
+    }
+
+    private val referencedClasses = HashSet<String>()
+    private val referencedIdentifiers = HashSet<String>()
+
+    @Throws(IOException::class)
+    fun addConsumerClasses(classes: File): ReachabilityAnalysis {
+        if (classes.isDirectory) {
+            classes.walkTopDown().filter { it.isFile && it.name.endsWith(".class") }
+                    .forEach { addReferencedClasses(it.readBytes()) }
+        } else {
+            ZipFile(classes).use { zip ->
+                for (entry in zip.entries()) {
+                    if (entry.name.endsWith(".class")) {
+                        addReferencedClasses(zip.getInputStream(entry).use { it.readBytes() })
+                    }
+                }
+            }
+        }
+        return this
+    }
+
+    @Throws(IOException::class)
+    fun addConsumerSources(sources: File): ReachabilityAnalysis {
+        sources.walkTopDown().filter { it.isFile }.forEach {
+            addIdentifiers(it.readText(), referencedIdentifiers)
+        }
+        return this
+    }
+
+    @Throws(IOException::class)
+    fun analyze(): Result {
+        val source = generator.getSource()
+        val templates = LinkedHashMap<String, String>()
+        if (source.isDirectory) {
+            source.walkTopDown().filter { it.isFile }.forEach {
+                templates[it.relativeTo(source).invariantSeparatorsPath] = it.readText()
+            }
+        } else {
+            templates[source.name] = source.readText()
+        }
+        return analyze(templates)
+    }
+
+    @Throws(IOException::class)
+    fun analyze(templates: Map<String, String>): Result {
+        check(generator.getRetainedOutputs() == null) {
+            "Reachability should be analyzed with a generator without retained outputs"
+        }
+        class Output(val specializedPath: String, val context: Context)
+        val outputs = Collections.synchronizedMap(HashMap<String, Output>())
+        generator.outputRecorder = { path, specializedPath, context ->
+            outputs[path] = Output(specializedPath, context)
+        }
+        val generated = try {
+            generator.generate(templates)
+        } finally {
+            generator.outputRecorder = null
+        }
+
+        val classesBySimpleName = HashMap<String, MutableList<String>>()
+        for (path in generated.keys) {
+            if (isClass(path)) {
+                classesBySimpleName.getOrPut(simpleName(path)) { ArrayList() }.add(path)
+            }
+        }
+        val reachable = HashSet<String>()
+        val queue = ArrayDeque<String>()
+        fun reach(path: String) {
+            if (reachable.add(path))
+                queue.add(path)
+        }
+        for (path in generated.keys) {
+            if (!isClass(path)) {
+                reach(path)
+            } else if (path.removeSuffix(".java") in referencedClasses ||
+                    simpleName(path) in referencedIdentifiers) {
+                reach(path)
+            }
+        }
+        while (queue.isNotEmpty()) {
+            val path = queue.poll()
+            val identifiers = HashSet<String>()
+            addIdentifiers(generated[path]!!, identifiers)
+            for (identifier in identifiers) {
+                classesBySimpleName[identifier]?.forEach { reach(it) }
+            }
+        }
+
+        val retainedOutputs = TreeSet<String>()
+        for (path in reachable) {
+            retainedOutputs.add(outputs[path]?.specializedPath ?: path)
+        }
+        val generatedClasses = generated.keys.count { isClass(it) }
+        val reachableClasses = reachable.count { isClass(it) }
+        val excludeConditions = excludeConditions(
+                outputs.filterKeys { it in reachable }.values.map { it.context },
+                outputs.filterKeys { it !in reachable && isClass(it) }.values.map { it.context })
+        val result = Result(retainedOutputs, generatedClasses, reachableClasses, excludeConditions)
+        log.info("{}", result)
+        return result
+    }
+
+    private fun excludeConditions(reachableContexts: List<Context>,
+                                  unreachableContexts: List<Context>): List<String> {
+        val defaultDimensions = generator.defaultContextDimensions()
+        val conditions = LinkedHashSet<String>()
+        for (context in unreachableContexts) {
+            val condition = context.filter { (dim, _) -> dim !in defaultDimensions }
+            if (condition.isEmpty())
+                continue
+            val matchesReachable = reachableContexts.any { reachableContext ->
+                condition.all { (dim, option) -> reachableContext.getOption(dim) == option }
+            }
+            if (!matchesReachable) {
+                conditions.add(condition.joinToString(" ") { (dim, option) ->
+                    "${optionName(option)} $dim"
+                })
+            }
+        }
+        return ArrayList(conditions)
+    }
+
+    private fun addReferencedClasses(classFile: ByteArray) {
+        try {
+            for (name in ClassFiles.referencedClasses(classFile)) {
+                // Nested classes are generated in the same source as the top-level class
+                referencedClasses.add(name.substringBefore('$'))
+            }
+        } catch (e: BufferUnderflowException) {
+            log.debug("Malformed class file is skipped", e)
+        }
+    }
+
+    private object ClassFiles {
+        private val DESCRIPTOR_CLASS = Regex("L([\\w/$]+)[;<]")
+
+        /**
+         * Internal names of the classes in the constant pool of the class file, which doesn't have
+         * the classes whose compile-time constants are inlined.
+         */
+        fun referencedClasses(classFile: ByteArray): Set<String> {
+            val buffer = ByteBuffer.wrap(classFile)
+            if (buffer.int != 0xCAFEBABE.toInt())
+                return emptySet()
+            buffer.int // minor and major versions
+            val count = buffer.short.toInt() and 0xFFFF
+            val utf8 = arrayOfNulls<String>(count)
+            val classIndexes = ArrayList<Int>()
+            var i = 1
+            while (i < count) {
+                when (buffer.get().toInt()) {
+                    1 -> {
+                        val bytes = ByteArray(buffer.short.toInt() and 0xFFFF)
+                        buffer.get(bytes)
+                        // Modified UTF-8 differs from UTF-8 only in null and supplementary chars
+                        utf8[i] = String(bytes, Charsets.UTF_8)
+                    }
+                    7 -> classIndexes.add(buffer.short.toInt() and 0xFFFF)
+                    8, 16, 19, 20 -> buffer.short
+                    3, 4, 9, 10, 11, 12, 17, 18 -> buffer.int
+                    5, 6 -> {
+                        buffer.long
+                        // 8-byte constants take two entries
+                        i++
+                    }
+                    15 -> {
+                        buffer.get()
+                        buffer.short
+                    }
+                    else -> return emptySet()
+                }
+                i++
+            }
+            val classes = HashSet<String>()
+            for (index in classIndexes) {
+                val name = utf8[index] ?: continue
+                if (name.startsWith("[")) {
+                    DESCRIPTOR_CLASS.findAll(name).forEach { classes.add(it.groupValues[1]) }
+                } else {
+                    classes.add(name)
+                }
+            }
+            for (s in utf8) {
+                if (s != null && s.contains(';')) {
+                    DESCRIPTOR_CLASS.findAll(s).forEach { classes.add(it.groupValues[1]) }
+                }
+            }
+            return classes
+        }
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(ReachabilityAnalysis::class.java)
+
+        private val IDENTIFIER = Regex("[A-Za-z_$][\\w$]*")
+
+        private fun addIdentifiers(source: String, identifiers: MutableSet<String>) {
+            IDENTIFIER.findAll(source).forEach { identifiers.add(it.value) }
+        }
+
+        private fun isClass(path: String) =
+                path.endsWith(".java") && !path.endsWith("package-info.java")
+
+        private fun simpleName(path: String) = path.removeSuffix(".java").substringAfterLast('/')
+
+        private fun optionName(option: Option): String = when (option) {
+            is ObjectType -> option.neutralIdStyle.name.toLowerCase(Locale.ROOT)
+            else -> option.toString().toLowerCase(Locale.ROOT)
+        }
+    }
+}
@@ -16,9 +16,14 @@
 
 package io.timeandspace.jpsg;
 
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
 
 /**
  * Subclasses must have public no-arg constructor.
@@ -45,26 +50,74 @@ public abstract class TemplateProcessor {
         return DEFAULT_PRIORITY;
     }
 
+    /**
+     * Strings one of which must appear in a template for this processor to change it, or
+     * {@code null} if the processor applies to every template.
+     */
+    protected @Nullable List<String> triggerMarkers() {
+        return null;
+    }
+
+    /**
+     * Describes the configuration of this processor for keying the {@link OutputCache}, or returns
+     * {@code null} if it couldn't be described (the default), then generated files are not cached.
+     */
+    protected @Nullable String configurationKey() {
+        return null;
+    }
+
     protected final Dimensions.Parser getDimensionsParser() {
         return dimensionsParser;
     }
 
     protected final void postProcess(StringBuilder sb,
             Context source, Context target, String template) {
-        if (next != null) {
-            next.process(sb, source, target, template);
-        } else {
-            sb.append(template);
-        }
+        processFrom(next, sb, source, target, template);
         // sb.append(next != null ? next.generate(source, target, template) : template);
     }
 
     final String generate(Context source, Context target, String template) {
         StringBuilder sb = new StringBuilder();
-        process(sb, source, target, template);
+        processFrom(this, sb, source, target, template);
         return sb.toString();
     }
 
+    private static void processFrom(@Nullable TemplateProcessor processor, StringBuilder sb,
+            Context source, Context target, String template) {
+        Set<TemplateProcessor> skipped = Generator.skippedProcessors();
+        if (skipped != null) {
+            while (processor != null && skipped.contains(processor)) {
+                processor = processor.next;
+            }
+        }
+        if (processor != null) {
+            JfrEvents.Event event = JfrEvents.PROCESSING.begin();
+            int startLength = event != null ? sb.length() : 0;
+            GenerationMetrics metrics = Generator.currentMetrics();
+            if (metrics != null) {
+                metrics.process(processor, sb, source, target, template);
+            } else {
+                processor.process(sb, source, target, template);
+            }
+            if (event != null && event.shouldCommit()) {
+                File sourceFile = Generator.currentSourceFile();
+                event.set(processor.getClass().getSimpleName(),
+                        sourceFile != null ? sourceFile.getPath() : null, target.toString(),
+                        (long) template.length(), (long) (sb.length() - startLength)).commit();
+            }
+        } else {
+            sb.append(template);
+        }
+    }
+
+
+    /** Counts a directive found in the template, for {@link Generator#setReportFile} */
+    protected static void countMatch() {
+        GenerationMetrics metrics = Generator.currentMetrics();
+        if (metrics != null) {
+            metrics.countMatch();
+        }
+    }
 
     final void setDimensionsParser(Dimensions.Parser parser) {
         dimensionsParser = parser;
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * Counts of runtime uses of classes, see [Generator.setUsageProfile]. Read from `-Xlog:class+load`,
+ * `jfr print`, `jcmd GC.class_histogram` output, or from lists of class names with optional
+ * counts. Uses of nested classes are counted as uses of their top-level classes.
+ */
+class UsageProfile {
+    private val counts = HashMap<String, Long>()
+
+    fun add(className: String, count: Long): UsageProfile {
+        val topLevelName = normalize(className) ?: return this
+        counts.merge(topLevelName, count) { a, b -> a + b }
+        return this
+    }
+
+    fun count(className: String): Long {
+        return counts[className] ?: 0L
+    }
+
+    fun classes(): Int = counts.size
+
+    @Throws(IOException::class)
+    fun read(profile: File): UsageProfile {
+        profile.forEachLine { line -> readLine(line) }
+        return this
+    }
+
+    private fun readLine(line: String) {
+        CLASS_LOAD_LOG.find(line)?.let { add(it.groupValues[1], 1); return }
+        JFR_EVENT_FIELD.find(line)?.let { add(it.groupValues[1], 1); return }
+        HISTOGRAM_ENTRY.matchEntire(line)?.let {
+            add(it.groupValues[2], it.groupValues[1].toLong())
+            return
+        }
+        PLAIN_ENTRY.matchEntire(line)?.let {
+            val count = it.groupValues[2]
+            add(it.groupValues[1], if (count.isEmpty()) 1 else count.toLong())
+        }
+    }
+
+    override fun toString(): String {
+        return "UsageProfile of ${counts.size} classes"
+    }
+
+    companion object {
+        private const val CLASS_NAME = "([\\w.$/\\[;]+)"
+        private val CLASS_LOAD_LOG = Regex("\\[class,load\\s*]\\s+$CLASS_NAME")
+        private val JFR_EVENT_FIELD = Regex("(?:loadedClass|objectClass)\\s*=\\s*$CLASS_NAME")
+        private val HISTOGRAM_ENTRY = Regex("\\s*\\d+:\\s+(\\d+)\\s+\\d+\\s+$CLASS_NAME.*")
+        private val PLAIN_ENTRY = Regex("\\s*$CLASS_NAME(?:\\s+(\\d+))?\\s*")
+
+        @JvmStatic
+        @Throws(IOException::class)
+        fun read(vararg profiles: File): UsageProfile {
+            val profile = UsageProfile()
+            for (file in profiles) {
+                profile.read(file)
+            }
+            return profile
+        }
+
+        private fun normalize(className: String): String? {
+            var name = className.replace('/', '.').trimStart('[')
+            if (name.startsWith("L") && name.endsWith(";")) {
+                name = name.substring(1, name.length - 1)
+            } else if (name.length != className.length) {
+                return null
+            }
+            if (name.isEmpty() || name.contains(';') || name.contains('['))
+                return null
+            return name.substringBefore('$')
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.slf4j.LoggerFactory
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.util.*
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+/**
+ * Writes generated files as entries of a zip archive, in the order of their paths and with a fixed
+ * modification time. The archive is left untouched if it already has the same entries.
+ */
+class ZipOutputSink(val archive: File, val stored: Boolean) : OutputSink, Closeable {
+
+    private class Entry(val offset: Long, val size: Int, val crc: Long)
+
+    private val entries = TreeMap<String, Entry>()
+    private var spillFile: File? = null
+    private var spill: OutputStream? = null
+    private var spillSize = 0L
+    private var closed = false
+
+    @Synchronized
+    @Throws(IOException::class)
+    override fun write(path: String, content: String) {
+        check(!closed) { "$archive is already closed" }
+        val bytes = content.toByteArray(Charsets.UTF_8)
+        val crc = CRC32()
+        crc.update(bytes)
+        var spill = this.spill
+        if (spill == null) {
+            val dir = archive.absoluteFile.parentFile
+            dir.mkdirs()
+            val spillFile = File.createTempFile(archive.name, ".entries", dir)
+            this.spillFile = spillFile
+            spill = BufferedOutputStream(FileOutputStream(spillFile))
+            this.spill = spill
+        }
+        spill.write(bytes)
+        val previous = entries.put(path, Entry(spillSize, bytes.size, crc.value))
+        spillSize += bytes.size
+        if (previous != null && (previous.size != bytes.size || previous.crc != crc.value)) {
+            log.warn("Entry {} of {} is generated twice with different contents, " +
+                    "the later one is written", path, archive)
+        }
+    }
+
+    /** @return `true` if [archive] is written, `false` if it is up to date */
+    @Synchronized
+    @Throws(IOException::class)
+    fun commit(): Boolean {
+        check(!closed) { "$archive is already closed" }
+        closed = true
+        spill?.close()
+        if (hasSameEntries(archive)) {
+            log.debug("{} is up to date", archive)
+            return false
+        }
+        val dir = archive.absoluteFile.parentFile
+        dir.mkdirs()
+        val tmp = File.createTempFile(archive.name, ".tmp", dir)
+        try {
+            ZipOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                if (stored) {
+                    out.setMethod(ZipOutputStream.STORED)
+                }
+                val buffer = ByteArray(8192)
+                val spill = spillFile?.let { RandomAccessFile(it, "r") }
+                spill.use {
+                    for ((path, entry) in entries) {
+                        val zipEntry = ZipEntry(path)
+                        zipEntry.time = ENTRY_TIME
+                        if (stored) {
+                            zipEntry.size = entry.size.toLong()
+                            zipEntry.compressedSize = entry.size.toLong()
+                            zipEntry.crc = entry.crc
+                        }
+                        out.putNextEntry(zipEntry)
+                        spill!!.seek(entry.offset)
+                        var remaining = entry.size
+                        while (remaining > 0) {
+                            val read = minOf(remaining, buffer.size)
+                            spill.readFully(buffer, 0, read)
+                            out.write(buffer, 0, read)
+                            remaining -= read
+                        }
+                        out.closeEntry()
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), archive.toPath(), ATOMIC_MOVE, REPLACE_EXISTING)
+            log.debug("Wrote {} entries to {}", entries.size, archive)
+            return true
+        } finally {
+            tmp.delete()
+        }
+    }
+
+    @Synchronized
+    override fun close() {
+        closed = true
+        entries.clear()
+        try {
+            spill?.close()
+        } catch (e: IOException) {
+            log.debug("Failed to close {}", spillFile, e)
+        }
+        spillFile?.delete()
+        spill = null
+        spillFile = null
+    }
+
+    private fun hasSameEntries(existing: File): Boolean {
+        if (!existing.isFile)
+            return false
+        return try {
+            ZipFile(existing).use { zip ->
+                if (zip.size() != entries.size)
+                    return false
+                for (zipEntry in zip.entries()) {
+                    val entry = entries[zipEntry.name] ?: return false
+                    if (zipEntry.size != entry.size.toLong() || zipEntry.crc != entry.crc ||
+                            zipEntry.method != method) {
+                        return false
+                    }
+                }
+                true
+            }
+        } catch (e: IOException) {
+            log.debug("Failed to read {}", existing, e)
+            false
+        }
+    }
+
+    private val method: Int
+        get() = if (stored) ZipEntry.STORED else ZipEntry.DEFLATED
+
+    companion object {
+        private val log = LoggerFactory.getLogger(ZipOutputSink::class.java)
+
+        private val ENTRY_TIME =
+                GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis
+    }
+}
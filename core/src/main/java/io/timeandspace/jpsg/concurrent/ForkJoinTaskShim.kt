@@ -24,4 +24,10 @@ interface ForkJoinTaskShim<out T> {
      * No FJT: just call the task in this thread
      */
     fun forkAndGet(): T
+
+    /**
+     * Real FJT: fork().join() in a dedicated pool with the given parallelism
+     * No FJT: just call the task in this thread
+     */
+    fun forkAndGet(parallelism: Int): T
 }
\ No newline at end of file
@@ -31,6 +31,7 @@ internal class NoForkJoinTasks : ForkJoinTasks {
 private class NoForkJoinTask<V>(val callable: Callable<V>) : ForkJoinTaskShim<V> {
     override fun get() = callable.call()
     override fun forkAndGet() = callable.call()
+    override fun forkAndGet(parallelism: Int) = callable.call()
 }
 
 
@@ -36,6 +36,16 @@ private class RealForkJoinTask<T>(val delegate: ForkJoinTask<T>) : ForkJoinTaskS
     override fun get() = delegate.get()
     override fun forkAndGet() = pool.submit(delegate).get()
 
+    override fun forkAndGet(parallelism: Int): T {
+        // Tasks forked by this task run in the same pool
+        val dedicatedPool = ForkJoinPool(parallelism)
+        try {
+            return dedicatedPool.submit(delegate).get()
+        } finally {
+            dedicatedPool.shutdown()
+        }
+    }
+
     companion object {
         val pool: ForkJoinPool = try {
             val commonPool = ForkJoinPool::class.java.getMethod("commonPool")
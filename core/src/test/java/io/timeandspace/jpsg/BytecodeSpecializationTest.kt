@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class BytecodeSpecializationTest : TempDirTest() {
+
+    @Test
+    fun testDerivedClassFilesAreEqualToCompiled() {
+        val sources = Generator().setDefaultTypes("byte|char|short|int|long|float|double")
+                .generate(mapOf("p/CharHolder.java" to """
+                    package p;
+
+                    public class CharHolder {
+                        private final Object value;
+
+                        public CharHolder(Object value) {
+                            this.value = value;
+                        }
+
+                        public Object getChar() {
+                            return value;
+                        }
+
+                        public CharHolder copyChar() {
+                            return new CharHolder(value);
+                        }
+
+                        public CharHolder.Node charNode() {
+                            return new Node();
+                        }
+
+                        public class Node {
+                            Object holderValue() {
+                                return value;
+                            }
+                        }
+                    }
+                """.trimIndent() + "\n"))
+        assertEquals(7, sources.size)
+        val derivations = derivations(sources)
+        assertEquals(6, derivations.size)
+        val compiled = compile(sources, false)
+        for ((derived, d) in derivations) {
+            for (suffix in listOf("", "\$Node")) {
+                val renamed = BytecodeSpecialization.rename(
+                        compiled[d.base + suffix]!!, d.renaming, sources.keys.binaryNames())
+                assertArrayEquals(compiled[derived + suffix], renamed, derived + suffix)
+            }
+        }
+        assertClassFilesEqual(compiled, compile(sources, true))
+    }
+
+    @Test
+    fun testStringConstantsAreNotRenamed() {
+        val sources = specializations("""
+            package p;
+
+            public class CharBox {
+                public static final String NAME = "CharBox";
+
+                public String name() {
+                    return NAME;
+                }
+            }
+        """)
+        assertNotDerived(sources)
+    }
+
+    @Test
+    fun testStringSwitchIsNotRenamed() {
+        val sources = specializations("""
+            package p;
+
+            public class CharBox {
+                public int index(String name) {
+                    switch (name) {
+                        case "getChar": return 1;
+                        case "setChar": return 2;
+                        default: return 0;
+                    }
+                }
+            }
+        """)
+        assertNotDerived(sources)
+    }
+
+    @Test
+    fun testNamesFromOutsideOfSourceAreNotRenamed() {
+        // lang -> util would rename java/lang/String in the class file
+        val sources = mapOf(
+                "p/LangBox.java" to """
+                    package p;
+
+                    public class LangBox {
+                        public String lang(Object o) {
+                            return o.toString();
+                        }
+                    }
+                """.trimIndent() + "\n",
+                "p/UtilBox.java" to """
+                    package p;
+
+                    public class UtilBox {
+                        public String util(Object o) {
+                            return o.toString();
+                        }
+                    }
+                """.trimIndent() + "\n")
+        assertNotDerived(sources)
+    }
+
+    @Test
+    fun testPackagesOfImplicitlyReferencedClassesAreNotRenamed() {
+        // util -> misc would rename java/util/stream/IntStream, the return type of chars(), in
+        // the class file
+        val sources = mapOf(
+                "p/ABox.java" to """
+                    package p;
+
+                    public class ABox {
+                        long util(CharSequence s) {
+                            return s.chars().count();
+                        }
+                    }
+                """.trimIndent() + "\n",
+                "p/BBox.java" to """
+                    package p;
+
+                    public class BBox {
+                        long misc(CharSequence s) {
+                            return s.chars().count();
+                        }
+                    }
+                """.trimIndent() + "\n")
+        assertNotDerived(sources)
+    }
+
+    private fun specializations(template: String): Map<String, String> {
+        val sources = Generator().setDefaultTypes("char|int")
+                .generate(mapOf("p/CharBox.java" to template.trimIndent() + "\n"))
+        assertEquals(2, sources.size)
+        return sources
+    }
+
+    /**
+     * Asserts that the sources are found to be equal up to renaming, but the class files are
+     * compiled rather than derived.
+     */
+    private fun assertNotDerived(sources: Map<String, String>) {
+        val derivations = derivations(sources)
+        assertEquals(1, derivations.size)
+        val compiled = compile(sources, false)
+        for ((_, d) in derivations) {
+            assertNull(BytecodeSpecialization.rename(
+                    compiled[d.base]!!, d.renaming, sources.keys.binaryNames()))
+        }
+        assertClassFilesEqual(compiled, compile(sources, true))
+    }
+
+    private fun derivations(sources: Map<String, String>):
+            Map<String, BytecodeSpecialization.Derivation> {
+        val byBinaryNames = sources.mapKeys { binaryName(it.key) }
+        val derivations = HashMap(BytecodeSpecialization.findDerivations(byBinaryNames))
+        BytecodeSpecialization.validate(derivations, byBinaryNames)
+        return derivations
+    }
+
+    private fun compile(sources: Map<String, String>, bytecodeSpecialization: Boolean):
+            Map<String, ByteArray> {
+        val classesDir = dir.resolve(if (bytecodeSpecialization) "derived" else "compiled")
+        CompilingOutputSink(classesDir, emptyList(), emptyList(), null, bytecodeSpecialization)
+                .use { sink ->
+                    for ((path, content) in sources) {
+                        sink.write(path, content)
+                    }
+                    for (directory in sources.keys.map { it.substringBeforeLast('/') }.toSet()) {
+                        sink.directoryFinished(directory)
+                    }
+                    sink.commit()
+                }
+        return classesDir.walkTopDown().filter { it.isFile }.associate {
+            it.relativeTo(classesDir).invariantSeparatorsPath.removeSuffix(".class")
+                    .replace('/', '.') to it.readBytes()
+        }
+    }
+
+    private fun assertClassFilesEqual(expected: Map<String, ByteArray>,
+                                      actual: Map<String, ByteArray>) {
+        assertEquals(expected.keys, actual.keys)
+        for ((binaryName, bytes) in expected) {
+            assertArrayEquals(bytes, actual[binaryName], binaryName)
+        }
+        assertTrue(expected.isNotEmpty())
+    }
+
+    private fun Set<String>.binaryNames(): Set<String> = mapTo(HashSet()) { binaryName(it) }
+
+    private fun binaryName(path: String) = path.removeSuffix(".java").replace('/', '.')
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.net.URLClassLoader
+
+class CompilingOutputSinkTest : TempDirTest() {
+
+    private val classesDir = dir.resolve("classes")
+    private val sourcesDir = dir.resolve("sources")
+
+    @Test
+    fun testPackageDependingOnLaterPackage() {
+        // a is finished first and refers to b, which is not generated yet: a's batch fails and
+        // is compiled again in commit()
+        compile(listOf(
+                "a" to mapOf("a/A.java" to
+                        "package a; public class A { public b.B b = new b.B(); }"),
+                "b" to mapOf("b/B.java" to "package b; public class B { public int x = 42; }")))
+        assertClasses("a.A", "b.B")
+        assertEquals(42, newInstance("a.A").let { a ->
+            val b = a.javaClass.getDeclaredField("b").get(a)
+            b.javaClass.getField("x").get(b)
+        })
+    }
+
+    @Test
+    fun testPackageDependingOnEarlierPackage() {
+        compile(listOf(
+                "b" to mapOf("b/B.java" to "package b; public class B {}"),
+                "a" to mapOf("a/A.java" to "package a; public class A extends b.B {}")))
+        assertClasses("a.A", "b.B")
+    }
+
+    @Test
+    fun testMutuallyDependentPackages() {
+        compile(listOf(
+                "a" to mapOf("a/A.java" to "package a; public class A { b.B b; }"),
+                "b" to mapOf("b/B.java" to "package b; public class B { a.A a; }"),
+                "c/d" to mapOf(
+                        "c/d/C.java" to "package c.d; public class C { a.A a; b.B b; D d; }",
+                        "c/d/D.java" to "package c.d; class D {}",
+                        "c/d/readme.txt" to "Not compiled")))
+        assertClasses("a.A", "b.B", "c.d.C", "c.d.D")
+        assertEquals("Not compiled", dir.resolve("sources/c/d/readme.txt").readText())
+    }
+
+    @Test
+    fun testCompilationErrors() {
+        val e = assertThrows(IllegalStateException::class.java) {
+            compile(listOf(
+                    "a" to mapOf("a/A.java" to "package a; public class A { b.Missing m; }")))
+        }
+        assertTrue(e.message!!.contains("Missing"), e.message)
+        assertFalse(classesDir.resolve("a/A.class").exists())
+    }
+
+    @Test
+    fun testUpToDateClassFilesAreNotWritten() {
+        val packages = listOf("a" to mapOf("a/A.java" to "package a; public class A {}"))
+        compile(packages)
+        val classFile = classesDir.resolve("a/A.class")
+        val lastModified = 1_000_000_000_000L
+        assertTrue(classFile.setLastModified(lastModified))
+        compile(packages)
+        assertEquals(lastModified, classFile.lastModified())
+    }
+
+    @Test
+    fun testStaleClassFilesAreDeleted() {
+        compile(listOf(
+                "a" to mapOf("a/A.java" to "package a; public class A { class Inner {} }"),
+                "b" to mapOf("b/B.java" to "package b; public class B {}")))
+        assertClasses("a.A", "a.A\$Inner", "b.B")
+        compile(listOf("a" to mapOf("a/A.java" to "package a; public class A {}")))
+        assertClasses("a.A")
+        assertFalse(classesDir.resolve("b").exists())
+        assertFalse(sourcesDir.resolve("b").exists())
+        assertTrue(sourcesDir.resolve("a/A.java").exists())
+    }
+
+    @Test
+    fun testClassFilesNotWrittenBySinkAreKept() {
+        val foreignClass = classesDir.resolve("c/C.class")
+        foreignClass.parentFile.mkdirs()
+        foreignClass.writeBytes(byteArrayOf(1, 2, 3))
+        compile(listOf("a" to mapOf("a/A.java" to "package a; public class A {}")))
+        compile(listOf("b" to mapOf("b/B.java" to "package b; public class B {}")))
+        assertClasses("b.B", "c.C")
+    }
+
+    /**
+     * Writes the sources of packages and finishes the directories of packages in the given order.
+     */
+    private fun compile(packages: List<Pair<String, Map<String, String>>>) {
+        CompilingOutputSink(classesDir, emptyList(), emptyList(), sourcesDir, false,
+                dir.resolve("classes.jpsg-outputs")).use { sink ->
+            for ((directory, sources) in packages) {
+                for ((path, content) in sources) {
+                    sink.write(path, content)
+                }
+                sink.directoryFinished(directory)
+            }
+            sink.commit()
+        }
+    }
+
+    private fun assertClasses(vararg binaryNames: String) {
+        val classFiles = classesDir.walkTopDown().filter { it.isFile }
+                .map { it.relativeTo(classesDir).invariantSeparatorsPath }.toSet()
+        assertEquals(binaryNames.map { it.replace('.', '/') + ".class" }.toSet(), classFiles)
+    }
+
+    private fun newInstance(binaryName: String): Any {
+        URLClassLoader(arrayOf(classesDir.toURI().toURL())).use { loader ->
+            return loader.loadClass(binaryName).newInstance()
+        }
+    }
+}
@@ -35,6 +35,36 @@ internal class DefinitionTest {
         testPattern("d", "/* d  arg */")
     }
 
+    @Test
+    fun testNestedDefinitions() {
+        val template = "package p;\n\n" +
+                "/* define a */a(/* b */)/* enddefine */\n" +
+                "/* define b */b(/* c */)/* enddefine */\n" +
+                "/* define c */c/* enddefine */\n" +
+                "class A { String s = \"/* a */ /* b */ /* c */\"; }\n"
+        val generated = Generator().generate(mapOf("p/A.java" to template))
+        Assertions.assertEquals("package p;\n\n\n\n\nclass A { String s = \"a(b(c)) b(c) c\"; }\n",
+                generated["p/A.java"])
+    }
+
+    @Test
+    fun testManyDefinitions() {
+        // Completes only if the bodies of unused definitions are not expanded for every subset
+        // of the other definitions
+        val definitions = 30
+        val template = StringBuilder("package p;\n\nclass A {\n")
+        for (d in 0 until definitions) {
+            template.append("/* define def").append(d).append(" */").append(d)
+                    .append("/* enddefine */\n")
+        }
+        for (d in 0 until definitions) {
+            template.append("int f").append(d).append(" = /* def").append(d).append(" */;\n")
+        }
+        template.append("}\n")
+        val generated = Generator().generate(mapOf("p/A.java" to template.toString()))
+        Assertions.assertTrue(generated["p/A.java"]!!.contains("int f29 = 29;"))
+    }
+
     private fun testPattern(defName: String, template: String) {
         val defUsePattern: CheckingPattern =
                 DefinitionProcessor.makeDefinitionUsePattern(defName)
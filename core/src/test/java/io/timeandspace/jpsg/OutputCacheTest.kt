@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import io.timeandspace.jpsg.function.Predicate
+import io.timeandspace.jpsg.function.UnaryOperator
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+
+class OutputCacheTest : TempDirTest() {
+
+    @Test
+    fun testHitAndMiss() {
+        val cache = OutputCache(dir.resolve("cache"), OutputCache.DEFAULT_MAX_SIZE)
+        val key = cache.key("template", "context")
+        assertNull(cache.get(key))
+        cache.put(key, "IntList.java", "class IntList {}")
+        val entry = cache.get(key)
+        assertNotNull(entry)
+        assertEquals("IntList.java", entry!!.fileName)
+        val target = dir.resolve("IntList.java")
+        cache.materialize(entry, target)
+        assertEquals("class IntList {}", target.readText())
+        assertTrue(cache.isMaterializedAs(entry, target))
+        assertNull(cache.get(cache.key("template", "other context")))
+    }
+
+    @Test
+    fun testKeyPartsAreSeparated() {
+        val cache = OutputCache(dir, OutputCache.DEFAULT_MAX_SIZE)
+        assertFalse(cache.key("ab", "c") == cache.key("a", "bc"))
+    }
+
+    @Test
+    fun testHitDoesNotTouchMaterializedFile() {
+        val cache = OutputCache(dir.resolve("cache"), OutputCache.DEFAULT_MAX_SIZE)
+        val key = cache.key("template")
+        cache.put(key, "IntList.java", "class IntList {}")
+        val target = dir.resolve("IntList.java")
+        cache.materialize(cache.get(key)!!, target)
+        val lastModified = 1_000_000_000_000L
+        assertTrue(target.setLastModified(lastModified))
+        assertNotNull(cache.get(key))
+        assertEquals(lastModified, target.lastModified())
+    }
+
+    @Test
+    fun testEqualFileIsMaterialized() {
+        val cache = OutputCache(dir.resolve("cache"), OutputCache.DEFAULT_MAX_SIZE)
+        val key = cache.key("template")
+        cache.put(key, "IntList.java", "class IntList {}")
+        val entry = cache.get(key)!!
+        // E. g. copied from a cache on another file system
+        val target = dir.resolve("IntList.java")
+        target.writeText("class IntList {}")
+        assertTrue(cache.isMaterializedAs(entry, target))
+        target.writeText("class IntList {;")
+        assertFalse(cache.isMaterializedAs(entry, target))
+        assertFalse(cache.isMaterializedAs(entry, dir.resolve("LongList.java")))
+    }
+
+    @Test
+    fun testCacheHitsDoNotRewriteEqualFiles() {
+        val source = dir.resolve("source/p")
+        source.mkdirs()
+        source.resolve("CharList.java").writeText("package p;\n\npublic class CharList {}\n")
+        val target = dir.resolve("target")
+        val outputs = HashMap<String, String>()
+        val listener = object : GenerationListener {
+            override fun outputUnchanged(template: File, output: File, nanos: Long) {
+                synchronized(outputs) {
+                    outputs[output.name] = "unchanged"
+                }
+            }
+
+            override fun outputWritten(template: File, output: File, fromCache: Boolean,
+                    nanos: Long) {
+                synchronized(outputs) {
+                    outputs[output.name] = if (fromCache) "from cache" else "written"
+                }
+            }
+        }
+        // The first run writes the files and populates the cache, so the target files are not
+        // links to the cache entries
+        generator(dir.resolve("cache")).setTarget(target).generate()
+        val lastModified = 1_000_000_000_000L
+        val files = target.walkTopDown().filter { it.isFile }.toList()
+        for (file in files) {
+            assertTrue(file.setLastModified(lastModified))
+        }
+        generator(dir.resolve("cache")).setTarget(target).addListener(listener).generate()
+        assertTrue(outputs.isNotEmpty())
+        assertTrue(outputs.values.all { it == "unchanged" }, outputs.toString())
+        for (file in files) {
+            assertEquals(lastModified, file.lastModified(), file.name)
+        }
+    }
+
+    @Test
+    fun testLeastRecentlyUsedEntriesAreEvicted() {
+        val content = "x".repeat(100)
+        val cache = OutputCache(dir, 250)
+        val keys = (0 until 3).map { cache.key("template $it") }
+        for ((i, key) in keys.withIndex()) {
+            cache.put(key, "File$i.java", content)
+            // Entries written in the same millisecond are otherwise ordered arbitrarily
+            dir.resolve("$key.name").setLastModified(1_000_000_000_000L + i * 1000)
+        }
+        // Makes the first entry the most recently used
+        assertNotNull(cache.get(keys[0]))
+        cache.trim()
+        assertNotNull(cache.get(keys[0]))
+        assertNull(cache.get(keys[1]))
+        assertNotNull(cache.get(keys[2]))
+        assertFalse(dir.resolve("${keys[1]}.out").exists())
+    }
+
+    @Test
+    fun testCachedGenerationIsEqualToUncached() {
+        val source = dir.resolve("source/p")
+        source.mkdirs()
+        source.resolve("CharList.java").writeText(
+                "package p;\n\npublic class CharList {\n    char get() { return (char) 0; }\n}\n")
+        source.resolve("Readme.txt").writeText("Options: /* with int|long elem */int/**/\n")
+        val cacheDir = dir.resolve("cache")
+
+        Generator().setSource(dir.resolve("source")).setTarget(dir.resolve("plain")).generate()
+        val written = HashMap<String, Boolean>()
+        val listener = object : GenerationListener {
+            override fun outputWritten(template: File, output: File, fromCache: Boolean,
+                    nanos: Long) {
+                synchronized(written) {
+                    written[output.name] = fromCache
+                }
+            }
+        }
+        for (run in 0 until 2) {
+            written.clear()
+            generator(cacheDir).setTarget(dir.resolve("cached$run")).addListener(listener)
+                    .generate()
+            assertEquals(readFiles(dir.resolve("plain")), readFiles(dir.resolve("cached$run")))
+            assertTrue(written.isNotEmpty())
+            // The first run populates the cache, the second run finds every file in it
+            assertTrue(written.values.all { it == (run == 1) }, written.toString())
+        }
+    }
+
+    @Test
+    fun testProcessorsWithUndescribedConfigurationDisableCache() {
+        val generator = Generator().setCacheDir(dir).addPrimitiveTypeModifierProcessors(
+                "bits", UnaryOperator { it }, Predicate { true })
+        assertNull(generator.getConfigurationKey())
+        assertNotNull(Generator().setCacheDir(dir).getConfigurationKey())
+    }
+
+    @Test
+    fun testCustomProcessorsAreNotDescribedByDefault() {
+        assertNull(Generator().setCacheDir(dir).addProcessor(UpperCaseProcessor())
+                .getConfigurationKey())
+    }
+
+    class UpperCaseProcessor : TemplateProcessor() {
+        override fun process(sb: StringBuilder, source: Context, target: Context,
+                             template: String) {
+            postProcess(sb, source, target, template.toUpperCase())
+        }
+    }
+
+    private fun generator(cacheDir: File): Generator {
+        return Generator().setSource(dir.resolve("source")).setCacheDir(cacheDir)
+    }
+}
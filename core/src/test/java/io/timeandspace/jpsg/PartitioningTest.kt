@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.File
+
+class PartitioningTest : TempDirTest() {
+
+    private val source = dir.resolve("source")
+    private val target = dir.resolve("target")
+
+    @BeforeEach
+    fun writeTemplates() {
+        for (name in listOf("List", "Set", "Queue", "Stack", "Deque", "Bag")) {
+            val file = source.resolve("p/Int$name.java")
+            file.parentFile.mkdirs()
+            file.writeText("/* with int|long|double elem */\npackage p;\n\n" +
+                    "public class Int$name {\n    int get() { return 0; }\n}\n")
+        }
+        source.resolve("p/readme.txt").writeText("Not specialized\n")
+    }
+
+    @Test
+    fun testPartitionsTogetherGenerateFullOutput() {
+        val fullTarget = dir.resolve("full")
+        Generator().setSource(source).setTarget(fullTarget).generate()
+        val manifests = (1..3).map { generatePartition(it, 3) }
+        for (manifest in manifests) {
+            assertTrue(PartitionManifest.read(manifest).outputs.isNotEmpty())
+        }
+        assertEquals(readFiles(fullTarget), readFiles(target))
+
+        val verification = generator().verifyPartitions(manifests)
+        assertTrue(verification.isComplete, verification.toString())
+        assertTrue(verification.staleFiles.isEmpty(), verification.toString())
+    }
+
+    @Test
+    fun testVerificationFindsMissingPartitionsAndOutputs() {
+        val manifests = (1..2).map { generatePartition(it, 3) }
+        val missingOutput = PartitionManifest.read(manifests[0]).outputs.first()
+        assertTrue(target.resolve(missingOutput).delete())
+
+        val verification = generator().verifyPartitions(manifests)
+        assertFalse(verification.isComplete)
+        assertEquals(listOf(3), verification.missingPartitions)
+        assertTrue(verification.uncoveredUnits.isNotEmpty())
+        assertEquals(listOf(missingOutput), verification.missingOutputs)
+    }
+
+    @Test
+    fun testVerificationFindsStaleFiles() {
+        val manifests = (1..3).map { generatePartition(it, 3) }
+        val staleFile = target.resolve("p/IntTree.java")
+        staleFile.writeText("Left from an earlier generation\n")
+
+        val verification = generator().verifyPartitions(manifests)
+        // Stale files don't make the generation incomplete
+        assertTrue(verification.isComplete, verification.toString())
+        assertEquals(listOf(staleFile), verification.staleFiles)
+    }
+
+    private fun generator(): Generator {
+        return Generator().setSource(source).setTarget(target)
+    }
+
+    private fun generatePartition(partition: Int, partitions: Int): File {
+        val manifest = dir.resolve("manifests/$partition.txt")
+        generator().setPartition(partition, partitions).setPartitionManifest(manifest).generate()
+        return manifest
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class PreviewTest {
+
+    private val withTemplate = "package p;\n\n" +
+            "public class CharBox {\n" +
+            "    /* with int|long t */\n" +
+            "    int intValue() {\n" +
+            "        return 0;\n" +
+            "    }\n" +
+            "    /* endwith */\n" +
+            "    char get() { return 'a'; }\n" +
+            "}\n"
+
+    @Test
+    fun testLinesRepeatedByWithBlocks() {
+        val preview = Generator().preview("p/CharBox.java", withTemplate, "LongBox")
+        assertEquals(listOf(
+                "package p;", "", "public class LongBox {",
+                "    int intValue() {", "        return 0;", "    }",
+                "    long longValue() {", "        return 0;", "    }",
+                "    long get() { return 'a'; }", "}", ""), preview.content.lines())
+        assertEquals(listOf(0, 0, 2, 4, 5, 6, 4, 5, 6, 8, 9, 9), templateLines(preview))
+        assertEquals(3, preview.generatedLine(4))
+        assertEquals(-1, preview.generatedLine(7))
+    }
+
+    @Test
+    fun testLinesProducedByDefinitions() {
+        val template = "package p;\n\n" +
+                "/* define methods */\n" +
+                "    void first() {}\n" +
+                "    void second() {}\n" +
+                "/* enddefine */\n" +
+                "public class CharBox {\n" +
+                "    char get() { return 'a'; }\n" +
+                "/* methods */\n" +
+                "    char last() { return 'b'; }\n" +
+                "}\n"
+        val preview = Generator().preview("p/CharBox.java", template, "LongBox")
+        val lines = preview.content.lines()
+        fun templateLine(generatedLine: String) =
+                preview.templateLine(lines.indexOfFirst { it.trim() == generatedLine })
+        assertEquals(6, templateLine("public class LongBox {"))
+        assertEquals(7, templateLine("long get() { return 'a'; }"))
+        assertEquals(3, templateLine("void first() {}"))
+        assertEquals(4, templateLine("void second() {}"))
+        // The same shape as the `get` line, but more words in common
+        assertEquals(9, templateLine("long last() { return 'b'; }"))
+    }
+
+    @Test
+    fun testTemplateOffset() {
+        val preview = Generator().preview("p/CharBox.java", withTemplate, "LongBox")
+        // Lines equal besides indentation are mapped column by column
+        assertEquals(withTemplate.indexOf("intValue"),
+                preview.templateOffset(preview.content.indexOf("intValue")))
+        // Otherwise offsets are mapped to the start of the template line
+        assertEquals(withTemplate.indexOf("char get"),
+                preview.templateOffset(preview.content.indexOf("get()")))
+        assertEquals(withTemplate.indexOf("char get"),
+                preview.templateOffset(preview.content.indexOf("    long get")))
+        // The trailing empty line is mapped to the closing brace above it
+        assertEquals(withTemplate.lastIndexOf('}'),
+                preview.templateOffset(preview.content.length))
+    }
+
+    private fun templateLines(preview: Preview): List<Int> {
+        return (0 until preview.lineCount).map { preview.templateLine(it) }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import com.google.common.io.Resources
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.reflections.Reflections
+import org.reflections.scanners.ResourcesScanner
+import java.io.File
+
+class ProcessorSkippingTest {
+
+    @Test
+    fun testExamplesAreGeneratedAsWithFullChain() {
+        val examples = Reflections("examples", ResourcesScanner()).getResources { true }
+                .filter { !it.contains("generated") }
+        assertTrue(examples.isNotEmpty())
+        val generator = Generator()
+        generator.init()
+        val context = Context.builder().makeContext()
+        for (example in examples) {
+            Generator.setCurrentSourceFile(File(example))
+            val template = Resources.toString(Resources.getResource(example), Charsets.UTF_8)
+            val fullChainGenerated = generator.generate(context, context, template)
+            Generator.setSkippedProcessors(
+                    generator.findSkippedProcessors(template, context, listOf(context)))
+            try {
+                assertEquals(fullChainGenerated, generator.generate(context, context, template),
+                        example)
+            } finally {
+                Generator.setSkippedProcessors(null)
+            }
+        }
+    }
+
+    @Test
+    fun testMarkerInOptionName() {
+        // `var` is replaced with `const` in the Const context, that makes a const directive
+        val templates = mapOf("p/VarLongHolder.java" to "/* with Var|Const mode long elem */\n" +
+                "package p;\n\npublic class VarLongHolder {\n" +
+                "    long five() { return /* var elem 5 */5; }\n}\n")
+        val generated = assertGeneratedAsWithFullChain(templates)
+        assertTrue(generated["p/ConstLongHolder.java"]!!.contains("return 5L;"),
+                generated.toString())
+    }
+
+    private fun assertGeneratedAsWithFullChain(templates: Map<String, String>):
+            Map<String, String> {
+        val generated = Generator().generate(templates)
+        val fullChain = Generator()
+        fullChain.processorSkipping = false
+        assertEquals(fullChain.generate(templates), generated)
+        return generated
+    }
+}
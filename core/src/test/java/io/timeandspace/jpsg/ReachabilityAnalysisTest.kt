@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+
+class ReachabilityAnalysisTest : TempDirTest() {
+
+    private val templates = mapOf(
+            "p/CharList.java" to "package p;\n\npublic class CharList {\n    CharNode head;\n}\n",
+            "p/CharNode.java" to "package p;\n\nclass CharNode {\n    char value;\n}\n",
+            "p/CharIntMap.java" to "/* with char|int key int|long value */\npackage p;\n\n" +
+                    "public class CharIntMap {\n    char key;\n    int value;\n}\n")
+
+    @Test
+    fun testClassesMentionedInReachableSourcesAreReachable() {
+        val sources = dir.resolve("src")
+        sources.mkdirs()
+        sources.resolve("User.java").writeText("class User {\n    p.IntList list;\n}\n")
+        val result = ReachabilityAnalysis(Generator()).addConsumerSources(sources)
+                .analyze(templates)
+        assertEquals(sortedSetOf("p/IntList.java", "p/IntNode.java"), result.retainedOutputs)
+        assertEquals(18, result.generatedClasses)
+        assertEquals(2, result.reachableClasses)
+    }
+
+    @Test
+    fun testClassFileReferences() {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { out ->
+            out.writeInt(0xCAFEBABE.toInt())
+            out.writeShort(0)
+            out.writeShort(52)
+            // Long and double constants take two entries of the constant pool
+            out.writeShort(10)
+            out.writeByte(5) // #1
+            out.writeLong(1L)
+            out.writeByte(1) // #3
+            out.writeUTF("p/IntList\$Iter")
+            out.writeByte(7) // #4
+            out.writeShort(3)
+            out.writeByte(6) // #5
+            out.writeDouble(1.0)
+            out.writeByte(1) // #7
+            out.writeUTF("[Lp/ShortList;")
+            out.writeByte(7) // #8
+            out.writeShort(7)
+            out.writeByte(1) // #9
+            out.writeUTF("(Lp/CharLongMap;)V")
+        }
+        val classes = dir.resolve("classes")
+        classes.mkdirs()
+        classes.resolve("User.class").writeBytes(bytes.toByteArray())
+        val result = ReachabilityAnalysis(Generator()).addConsumerClasses(classes)
+                .analyze(templates)
+        // The nested class is generated in the source of the top-level class
+        assertEquals(sortedSetOf("p/CharLongMap.java", "p/IntList.java", "p/IntNode.java",
+                "p/ShortList.java", "p/ShortNode.java"), result.retainedOutputs)
+    }
+
+    @Test
+    fun testExcludeConditionsAreEquivalentToRetainedOutputs() {
+        val sources = dir.resolve("src")
+        sources.mkdirs()
+        sources.resolve("User.java").writeText(
+                "class User {\n    p.IntList list;\n    p.CharLongMap map;\n}\n")
+        val result = ReachabilityAnalysis(Generator()).addConsumerSources(sources)
+                .analyze(templates)
+        assertEquals(setOf("byte t", "short t", "char t", "long t", "float t", "double t",
+                "char key int value", "int key int value", "int key long value"),
+                result.excludeConditions.toSet())
+        val excluded = Generator().exclude(result.excludeConditions).generate(templates)
+        val retained = Generator().setRetainedOutputs(result.retainedOutputs).generate(templates)
+        assertEquals(result.retainedOutputs, excluded.keys.toSortedSet())
+        assertEquals(retained, excluded)
+    }
+}
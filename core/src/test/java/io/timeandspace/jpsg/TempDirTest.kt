@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.AfterEach
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * A test working with files in a temporary directory, which is deleted after each test.
+ */
+abstract class TempDirTest {
+
+    protected val dir: File = Files.createTempDirectory("jpsg-test").toFile()
+
+    @AfterEach
+    fun deleteDir() {
+        dir.deleteRecursively()
+    }
+}
+
+/**
+ * Returns the contents of the files in the directory by their paths relative to it, with `/`
+ * separators.
+ */
+fun readFiles(root: File): Map<String, String> {
+    return root.walkTopDown().filter { it.isFile }
+            .associate { it.relativeTo(root).invariantSeparatorsPath to it.readText() }
+}
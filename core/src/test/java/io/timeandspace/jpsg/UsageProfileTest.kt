@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class UsageProfileTest : TempDirTest() {
+
+    @Test
+    fun testFormats() {
+        val classLoadLog = dir.resolve("class-load.log")
+        classLoadLog.writeText(
+                "[0.042s][info][class,load] p.IntList source: file:/app.jar\n" +
+                "[0.043s][info][class,load ] p.IntList\$Iter source: file:/app.jar\n" +
+                "[0.044s][info][gc] Using G1\n")
+        val jfr = dir.resolve("events.txt")
+        jfr.writeText(
+                "jdk.ClassLoad {\n  loadedClass = p.LongList (classLoader = app)\n}\n" +
+                "jdk.ObjectAllocationSample {\n  objectClass = p.LongList (classLoader = app)\n" +
+                "  weight = 1.2 MB\n}\n")
+        val histogram = dir.resolve("histogram.txt")
+        histogram.writeText(
+                " num     #instances         #bytes  class name (module)\n" +
+                "-------------------------------------------------------\n" +
+                "   1:          1000          16000  p.CharList\n" +
+                "   2:            10            160  p.CharList\$Node\n" +
+                "   3:            20            480  [Lp.ShortList;\n")
+        val plain = dir.resolve("plain.txt")
+        plain.writeText("p.ByteList 7\np/FloatList\n")
+        val profile = UsageProfile.read(classLoadLog, jfr, histogram, plain)
+        assertEquals(2, profile.count("p.IntList"))
+        assertEquals(2, profile.count("p.LongList"))
+        assertEquals(1010, profile.count("p.CharList"))
+        assertEquals(20, profile.count("p.ShortList"))
+        assertEquals(7, profile.count("p.ByteList"))
+        assertEquals(1, profile.count("p.FloatList"))
+        assertEquals(6, profile.classes())
+    }
+
+    @Test
+    fun testArrayDescriptors() {
+        val profile = UsageProfile()
+                .add("[Lp.IntList;", 1)
+                .add("[[Lp/IntList\$Iter;", 2)
+                .add("[I", 5)
+                .add("[[J", 5)
+        assertEquals(3, profile.count("p.IntList"))
+        assertEquals(1, profile.classes())
+    }
+
+    @Test
+    fun testColdSpecializationsExceptGenericFallbackAreFiltered() {
+        val templates = mapOf("p/CharIntMap.java" to
+                "/* with char|int|object key int|object value */\npackage p;\n\n" +
+                "public class CharIntMap {\n    char key;\n    int value;\n}\n")
+        val profile = UsageProfile().add("p.IntIntMap", 5).add("p.CharIntMap", 1)
+        val generated = Generator().setUsageProfile(profile).setHotnessThreshold(2)
+                .generate(templates)
+        // ObjectObjectMap has no primitive options, it is generated although it is not used
+        assertEquals(setOf("p/IntIntMap.java", "p/ObjectObjectMap.java"), generated.keys)
+    }
+}
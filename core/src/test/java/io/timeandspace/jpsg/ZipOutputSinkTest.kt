@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.util.zip.ZipFile
+
+class ZipOutputSinkTest : TempDirTest() {
+
+    @Test
+    fun testEntriesAreSortedByPath() {
+        val files = linkedMapOf("b/B.java" to "class B {}", "a/A.java" to "class A {}",
+                "C.java" to "class C {}")
+        val archive = dir.resolve("a.zip")
+        write(archive, files)
+        val reversed = dir.resolve("reversed.zip")
+        write(reversed, files.entries.reversed().associate { it.key to it.value })
+        assertEquals(listOf("C.java", "a/A.java", "b/B.java"), entries(archive).keys.toList())
+        assertArrayEquals(archive.readBytes(), reversed.readBytes())
+    }
+
+    @Test
+    fun testUpToDateArchiveIsNotRewritten() {
+        val archive = dir.resolve("a.zip")
+        assertTrue(write(archive, mapOf("A.java" to "class A {}")))
+        val lastModified = 1_000_000_000_000L
+        assertTrue(archive.setLastModified(lastModified))
+        assertFalse(write(archive, mapOf("A.java" to "class A {}")))
+        assertEquals(lastModified, archive.lastModified())
+
+        assertTrue(write(archive, mapOf("A.java" to "class A { }")))
+        assertEquals(mapOf("A.java" to "class A { }"), entries(archive))
+        assertTrue(write(archive, mapOf("A.java" to "class A { }", "B.java" to "class B {}")))
+        assertTrue(write(archive, mapOf("A.java" to "class A { }")), "Entry removed")
+        assertTrue(write(archive, mapOf("A.java" to "class A { }"), stored = true),
+                "Compression method changed")
+    }
+
+    @Test
+    fun testLaterDuplicateWins() {
+        val archive = dir.resolve("a.zip")
+        ZipOutputSink(archive, false).use { sink ->
+            sink.write("A.java", "class A { int x; }")
+            sink.write("A.java", "class A { long x; }")
+            sink.commit()
+        }
+        assertEquals(mapOf("A.java" to "class A { long x; }"), entries(archive))
+        assertEquals(listOf("a.zip"), dir.list()!!.toList(), "Spill file is deleted")
+    }
+
+    @Test
+    fun testUncommittedArchiveIsDiscarded() {
+        val archive = dir.resolve("a.zip")
+        ZipOutputSink(archive, false).use { sink ->
+            sink.write("A.java", "class A {}")
+        }
+        assertFalse(archive.exists())
+        assertEquals(0, dir.listFiles()!!.size)
+    }
+
+    @Test
+    fun testGenerationIntoArchive() {
+        val source = dir.resolve("source/p")
+        source.mkdirs()
+        source.resolve("CharList.java").writeText(
+                "package p;\n\npublic class CharList {\n    char get() { return (char) 0; }\n}\n")
+        Generator().setSource(dir.resolve("source")).setTarget(dir.resolve("target")).generate()
+        val archive = dir.resolve("sources.jar")
+        Generator().setSource(dir.resolve("source")).setTargetArchive(archive).generate()
+        val target = dir.resolve("target")
+        val files = target.walkTopDown().filter { it.isFile }
+                .associate { it.relativeTo(target).invariantSeparatorsPath to it.readText() }
+        assertEquals(files, entries(archive))
+    }
+
+    private fun write(archive: File, files: Map<String, String>, stored: Boolean = false):
+            Boolean {
+        ZipOutputSink(archive, stored).use { sink ->
+            for ((path, content) in files) {
+                sink.write(path, content)
+            }
+            return sink.commit()
+        }
+    }
+
+    private fun entries(archive: File): Map<String, String> {
+        ZipFile(archive).use { zip ->
+            val entries = LinkedHashMap<String, String>()
+            for (entry in zip.entries()) {
+                entries[entry.name] = zip.getInputStream(entry).readBytes().toString(Charsets.UTF_8)
+            }
+            return entries
+        }
+    }
+}
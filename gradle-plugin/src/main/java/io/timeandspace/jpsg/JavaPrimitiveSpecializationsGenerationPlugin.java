@@ -167,6 +167,7 @@ public final class JavaPrimitiveSpecializationsGenerationPlugin implements Plugi
         // 3) Set up the JPSG output directory (adding to javac inputs!)
         final String outputDirectoryName = String.format("%s/generated-src/jpsg/%s/%s",
                 project.getBuildDir(), sourceSet.getName(), f.generatedPart());
+
         final File outputDirectory = new File(outputDirectoryName);
         f.getSourceDirectorySet(sourceSet).srcDir(outputDirectory);
 
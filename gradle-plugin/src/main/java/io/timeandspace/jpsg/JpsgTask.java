@@ -20,20 +20,32 @@ import io.timeandspace.jpsg.function.Predicate;
 import io.timeandspace.jpsg.function.UnaryOperator;
 import org.gradle.api.file.FileCollection;
 import org.gradle.api.internal.ConventionTask;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class JpsgTask extends ConventionTask {
 
     private final Generator g = new Generator();
     private FileCollection inputFiles;
+    private @Nullable File retainedOutputs;
+    private @Nullable File usageProfile;
 
     public JpsgTask setDefaultTypes(String defaultTypes) {
         g.setDefaultTypes(defaultTypes);
@@ -144,13 +156,246 @@ public class JpsgTask extends ConventionTask {
         return this;
     }
 
+    /** Not an output if the target archive is set */
     @OutputDirectory
+    @Optional
+    @Nullable
     public File getTarget() {
-        return g.getTarget();
+        return g.getTargetArchive() != null ? null : g.getTarget();
+    }
+
+    public JpsgTask setProcessorProfile(@Nullable List<String> processorProfile) {
+        g.setProcessorProfile(processorProfile);
+        return this;
+    }
+
+    @Input
+    @Optional
+    @Nullable
+    public Set<String> getProcessorProfile() {
+        return g.getProcessorProfile();
+    }
+
+    public JpsgTask setPartition(@Nullable String partition) {
+        if (partition != null) {
+            g.setPartition(partition);
+        } else {
+            g.setPartition(1, 1);
+        }
+        return this;
+    }
+
+    @Input
+    @Optional
+    @Nullable
+    public String getPartition() {
+        return g.getPartition();
+    }
+
+    public JpsgTask setPartitionManifest(File partitionManifest) {
+        g.setPartitionManifest(partitionManifest);
+        return this;
+    }
+
+    public JpsgTask setPartitionManifest(Path partitionManifest) {
+        return setPartitionManifest(partitionManifest.toFile());
+    }
+
+    public JpsgTask setPartitionManifest(String partitionManifest) {
+        return setPartitionManifest(new File(partitionManifest));
+    }
+
+    @OutputFile
+    @Optional
+    @Nullable
+    public File getPartitionManifest() {
+        return g.getPartitionManifest();
+    }
+
+    public JpsgTask setTargetArchive(File targetArchive) {
+        g.setTargetArchive(targetArchive);
+        return this;
+    }
+
+    public JpsgTask setTargetArchive(Path targetArchive) {
+        return setTargetArchive(targetArchive.toFile());
+    }
+
+    public JpsgTask setTargetArchive(String targetArchive) {
+        return setTargetArchive(new File(targetArchive));
+    }
+
+    @OutputFile
+    @Optional
+    @Nullable
+    public File getTargetArchive() {
+        return g.getTargetArchive();
+    }
+
+    public JpsgTask setArchiveStored(boolean archiveStored) {
+        g.setArchiveStored(archiveStored);
+        return this;
+    }
+
+    @Input
+    public boolean isArchiveStored() {
+        return g.isArchiveStored();
+    }
+
+    public JpsgTask setRetainedOutputs(File retainedOutputs) {
+        this.retainedOutputs = retainedOutputs;
+        return this;
+    }
+
+    public JpsgTask setRetainedOutputs(Path retainedOutputs) {
+        return setRetainedOutputs(retainedOutputs.toFile());
+    }
+
+    public JpsgTask setRetainedOutputs(String retainedOutputs) {
+        return setRetainedOutputs(new File(retainedOutputs));
+    }
+
+    @InputFile
+    @Optional
+    @Nullable
+    public File getRetainedOutputs() {
+        return retainedOutputs;
+    }
+
+    public JpsgTask setUsageProfile(File usageProfile) {
+        this.usageProfile = usageProfile;
+        return this;
+    }
+
+    public JpsgTask setUsageProfile(Path usageProfile) {
+        return setUsageProfile(usageProfile.toFile());
+    }
+
+    public JpsgTask setUsageProfile(String usageProfile) {
+        return setUsageProfile(new File(usageProfile));
+    }
+
+    @InputFile
+    @Optional
+    @Nullable
+    public File getUsageProfile() {
+        return usageProfile;
+    }
+
+    public JpsgTask setHotnessThreshold(long hotnessThreshold) {
+        g.setHotnessThreshold(hotnessThreshold);
+        return this;
+    }
+
+    @Input
+    public long getHotnessThreshold() {
+        return g.getHotnessThreshold();
+    }
+
+    public JpsgTask setCacheDir(File cacheDir) {
+        g.setCacheDir(cacheDir);
+        return this;
+    }
+
+    public JpsgTask setCacheDir(Path cacheDir) {
+        return setCacheDir(cacheDir.toFile());
+    }
+
+    public JpsgTask setCacheDir(String cacheDir) {
+        return setCacheDir(new File(cacheDir));
+    }
+
+    @Internal
+    @Nullable
+    public File getCacheDir() {
+        return g.getCacheDir();
+    }
+
+    public JpsgTask setCacheMaxSize(long cacheMaxSizeBytes) {
+        g.setCacheMaxSize(cacheMaxSizeBytes);
+        return this;
+    }
+
+    @Internal
+    public long getCacheMaxSize() {
+        return g.getCacheMaxSize();
+    }
+
+    public JpsgTask setParallelism(int parallelism) {
+        g.setParallelism(parallelism);
+        return this;
+    }
+
+    @Internal
+    public int getParallelism() {
+        return g.getParallelism();
+    }
+
+    public JpsgTask setReportFile(File reportFile) {
+        g.setReportFile(reportFile);
+        return this;
+    }
+
+    public JpsgTask setReportFile(Path reportFile) {
+        return setReportFile(reportFile.toFile());
+    }
+
+    public JpsgTask setReportFile(String reportFile) {
+        return setReportFile(new File(reportFile));
+    }
+
+    @OutputFile
+    @Optional
+    @Nullable
+    public File getReportFile() {
+        return g.getReportFile();
+    }
+
+    public JpsgTask addListener(GenerationListener listener) {
+        g.addListener(listener);
+        return this;
     }
 
     @TaskAction
     public void generate() throws IOException {
-        g.generate();
+        if (retainedOutputs != null) {
+            g.setRetainedOutputs(retainedOutputs);
+        }
+        if (usageProfile != null) {
+            g.setUsageProfile(usageProfile);
+        }
+        ProgressListener progressListener = new ProgressListener(getLogger());
+        g.addListener(progressListener);
+        try {
+            g.generate();
+        } finally {
+            g.removeListener(progressListener);
+        }
+    }
+
+    private static class ProgressListener implements GenerationListener {
+        private final Logger logger;
+        private final AtomicInteger finishedFiles = new AtomicInteger();
+        private volatile int templateFiles;
+
+        ProgressListener(Logger logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        public void generationStarted(File source, File target, int templateFiles) {
+            this.templateFiles = templateFiles;
+        }
+
+        @Override
+        public void fileFinished(File template, long nanos) {
+            int finished = finishedFiles.incrementAndGet();
+            int templateFiles = this.templateFiles;
+            if (templateFiles <= 0) {
+                logger.info("Generated {} template files", finished);
+            } else if (finished * 10L / templateFiles != (finished - 1) * 10L / templateFiles) {
+                logger.info("Generated {}/{} template files", finished, templateFiles);
+            }
+        }
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.timeandspace.jpsg
+
+import org.gradle.testkit.runner.GradleRunner
+import org.gradle.testkit.runner.TaskOutcome
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.Locale
+
+/**
+ * Times clean, no-op, single-edit and configuration-only builds of a synthetic multi-module project
+ * applying the plugin, with Gradle TestKit. Configured with `jpsg.perf.pluginVersions`,
+ * `jpsg.perf.modules`, `jpsg.perf.templatesPerModule`, `jpsg.perf.unitsPerTemplate`,
+ * `jpsg.perf.warmup`, `jpsg.perf.runs` and `jpsg.perf.report` system properties.
+ */
+class PluginPerformanceTest {
+
+    private class Configuration(
+            val pluginVersion: String, val buildCache: Boolean, val parallelism: Int) {
+        val name: String
+            get() = pluginVersion + (if (buildCache) ", build cache" else "") +
+                    (if (parallelism > 0) ", parallelism $parallelism" else "")
+    }
+
+    private class Result(val configuration: Configuration, val medianMillis: Map<String, Long>)
+
+    private val modules = intProperty("modules", 4)
+    private val templatesPerModule = intProperty("templatesPerModule", 100)
+    private val unitsPerTemplate = intProperty("unitsPerTemplate", 10)
+    private val warmup = intProperty("warmup", 2)
+    private val runs = intProperty("runs", 5)
+    private val pluginClasspath: List<File> = System.getProperty("jpsg.perf.pluginClasspath")
+            .split(File.pathSeparator).filter { it.isNotEmpty() }.map { File(it) }
+
+    private var edits = 0
+
+    @Test
+    fun measureBuilds() {
+        val pluginVersions = System.getProperty("jpsg.perf.pluginVersions", "current")
+                .split(",").map { it.trim() }
+        val configurations = ArrayList<Configuration>()
+        for (version in pluginVersions) {
+            configurations.add(Configuration(version, buildCache = false, parallelism = 0))
+            configurations.add(Configuration(version, buildCache = true, parallelism = 0))
+        }
+        // Older versions of the plugin don't have the parallelism property
+        configurations.add(Configuration("current", buildCache = false, parallelism = 1))
+
+        val results = configurations.map { measure(it) }
+        printTable(results)
+        System.getProperty("jpsg.perf.report")?.let { writeReport(File(it), results) }
+    }
+
+    private fun measure(configuration: Configuration): Result {
+        val projectDir = Files.createTempDirectory("jpsg-perf").toFile()
+        try {
+            writeProject(projectDir, configuration)
+            val medianMillis = LinkedHashMap<String, Long>()
+            medianMillis["clean"] = median {
+                for (i in 0 until modules) {
+                    File(projectDir, "module$i/build").deleteRecursively()
+                }
+                build(projectDir, configuration, TaskOutcome.SUCCESS)
+            }
+            medianMillis["noOp"] = median {
+                build(projectDir, configuration, TaskOutcome.UP_TO_DATE)
+            }
+            medianMillis["singleEdit"] = median {
+                File(projectDir, templatePath(0, 0)).appendText("// Edit ${edits++}\n")
+                build(projectDir, configuration, null)
+            }
+            medianMillis["configuration"] = median {
+                runner(projectDir, configuration, "-m").build()
+                Unit
+            }
+            return Result(configuration, medianMillis)
+        } finally {
+            projectDir.deleteRecursively()
+        }
+    }
+
+    private fun median(build: () -> Unit): Long {
+        repeat(warmup) { build() }
+        val times = LongArray(runs)
+        for (run in 0 until runs) {
+            val start = System.nanoTime()
+            build()
+            times[run] = (System.nanoTime() - start) / 1_000_000
+        }
+        times.sort()
+        return times[runs / 2]
+    }
+
+    private fun build(projectDir: File, configuration: Configuration,
+                      expectedOutcome: TaskOutcome?) {
+        val result = runner(projectDir, configuration).build()
+        for (i in 0 until modules) {
+            val outcome = result.task(":module$i:$TASK_NAME")?.outcome
+            val expected = expectedOutcome
+                    ?: if (i == 0) TaskOutcome.SUCCESS else TaskOutcome.UP_TO_DATE
+            assertEquals(expected, outcome, "Outcome of $TASK_NAME in module$i")
+        }
+    }
+
+    private fun runner(projectDir: File, configuration: Configuration, vararg extraArgs: String):
+            GradleRunner {
+        val args = ArrayList<String>()
+        args.add(TASK_NAME)
+        if (configuration.buildCache) {
+            args.add("--build-cache")
+        }
+        args.addAll(extraArgs)
+        return GradleRunner.create().withProjectDir(projectDir).withArguments(args)
+    }
+
+    private fun writeProject(projectDir: File, configuration: Configuration) {
+        val settings = StringBuilder()
+        settings.append("rootProject.name = 'jpsg-perf'\n")
+        for (i in 0 until modules) {
+            settings.append("include 'module$i'\n")
+        }
+        // Not to share the build cache with other builds, and between configurations
+        settings.append("buildCache {\n")
+                .append("    local {\n")
+                .append("        directory = new File(rootDir, 'build-cache')\n")
+                .append("    }\n")
+                .append("}\n")
+        File(projectDir, "settings.gradle").writeText(settings.toString())
+
+        val pluginDependency = if (configuration.pluginVersion == "current") {
+            pluginClasspath.joinToString(", ", "files(", ")") {
+                "'" + it.absolutePath.replace('\\', '/') + "'"
+            }
+        } else {
+            "'io.timeandspace:jpsg-gradle-plugin:${configuration.pluginVersion}'"
+        }
+        val build = StringBuilder()
+        build.append("buildscript {\n")
+                .append("    repositories {\n")
+                .append("        mavenLocal()\n")
+                .append("        mavenCentral()\n")
+                .append("    }\n")
+                .append("    dependencies {\n")
+                .append("        classpath $pluginDependency\n")
+                .append("    }\n")
+                .append("}\n\n")
+                .append("subprojects {\n")
+                .append("    apply plugin: 'jpsg'\n")
+        if (configuration.parallelism > 0) {
+            build.append("    tasks.withType(io.timeandspace.jpsg.JpsgTask) {\n")
+                    .append("        setParallelism(${configuration.parallelism})\n")
+                    .append("    }\n")
+        }
+        build.append("}\n")
+        File(projectDir, "build.gradle").writeText(build.toString())
+
+        for (module in 0 until modules) {
+            for (template in 0 until templatesPerModule) {
+                val file = File(projectDir, templatePath(module, template))
+                file.parentFile.mkdirs()
+                file.writeText(template(module, template))
+            }
+        }
+    }
+
+    private fun templatePath(module: Int, template: Int) =
+            "module$module/src/main/javaTemplates/perf/m$module/IntHolder$template.java"
+
+    private fun template(module: Int, template: Int): String {
+        val sb = StringBuilder()
+        sb.append("/* with int|long|float|double elem */\n")
+        sb.append("package perf.m$module;\n\n")
+        sb.append("public final class IntHolder$template {\n")
+        for (unit in 0 until unitsPerTemplate) {
+            sb.append("    private int value$unit;\n\n")
+            sb.append("    public int getValue$unit() {\n")
+            sb.append("        return value$unit;\n")
+            sb.append("    }\n\n")
+            sb.append("    /* if !(float|double elem) */\n")
+            sb.append("    public void incrementValue$unit() {\n")
+            sb.append("        value$unit++;\n")
+            sb.append("    }\n")
+            sb.append("    /* endif */\n\n")
+        }
+        sb.append("}\n")
+        return sb.toString()
+    }
+
+    private fun printTable(results: List<Result>) {
+        println(String.format(Locale.ROOT, "%-40s %10s %10s %10s %14s",
+                "Configuration, ms", "clean", "noOp", "singleEdit", "configuration"))
+        for (result in results) {
+            val t = result.medianMillis
+            println(String.format(Locale.ROOT, "%-40s %10d %10d %10d %14d",
+                    result.configuration.name, t["clean"], t["noOp"], t["singleEdit"],
+                    t["configuration"]))
+        }
+    }
+
+    private fun writeReport(file: File, results: List<Result>) {
+        val sb = StringBuilder()
+        sb.append("{\n")
+        sb.append("  \"parameters\": {\"modules\": ").append(modules)
+                .append(", \"templatesPerModule\": ").append(templatesPerModule)
+                .append(", \"unitsPerTemplate\": ").append(unitsPerTemplate)
+                .append(", \"runs\": ").append(runs).append("},\n")
+        sb.append("  \"results\": [\n")
+        results.forEachIndexed { index, result ->
+            val configuration = result.configuration
+            sb.append("    {\"pluginVersion\": \"").append(configuration.pluginVersion)
+                    .append("\", \"buildCache\": ").append(configuration.buildCache)
+                    .append(", \"parallelism\": ").append(configuration.parallelism)
+                    .append(", \"medianMillis\": {")
+            sb.append(result.medianMillis.entries.joinToString(", ") {
+                "\"${it.key}\": ${it.value}"
+            })
+            sb.append("}}").append(if (index < results.size - 1) ",\n" else "\n")
+        }
+        sb.append("  ]\n")
+        sb.append("}\n")
+        file.parentFile.mkdirs()
+        file.writeText(sb.toString())
+        println("Performance report written to $file")
+    }
+
+    companion object {
+        private const val TASK_NAME = "generateJavaSpecializations"
+
+        private fun intProperty(name: String, defaultValue: Int): Int =
+                System.getProperty("jpsg.perf.$name")?.toInt() ?: defaultValue
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+
+/**
+ * Generates, compiles and defines specializations which the parent class loader doesn't find, and
+ * caches the compiled classes between JVM starts. Generated classes are in a different runtime
+ * package than the classes of the parent, so they can't access each other's package-private
+ * members.
+ */
+public class SpecializingClassLoader extends ClassLoader {
+    private static final Logger log = LoggerFactory.getLogger(SpecializingClassLoader.class);
+
+    /** Resource with the paths of the bundled templates, one per line */
+    public static final String TEMPLATES_INDEX = "META-INF/jpsg/templates.list";
+    public static final String TEMPLATES_ROOT = "META-INF/jpsg/templates/";
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final Generator generator;
+    private final Map<String, String> templates;
+    private final File classesDir;
+    private final List<File> classpath;
+    private final List<String> compilerOptions;
+    private final Set<String> templateDirs = new HashSet<>();
+    /** Source paths which the templates may generate, computed on the first miss */
+    private Set<String> generatableSources;
+    /** Dirs of the templates which may redefine ClassName, any source could be generated there */
+    private final Set<String> renamingTemplateDirs = new HashSet<>();
+    /** Classes which are not generated, not to run the generation for them again */
+    private final Set<String> missingClasses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param classpath the class path of the compilation of generated sources, e. g. with
+     * ahead-of-time compiled specializations
+     */
+    public SpecializingClassLoader(ClassLoader parent, Generator generator,
+            Map<String, String> templates, File cacheDir, List<File> classpath,
+            List<String> compilerOptions) {
+        super(parent);
+        this.generator = generator;
+        this.templates = new TreeMap<>(templates);
+        this.classpath = new ArrayList<>(classpath);
+        this.compilerOptions = new ArrayList<>(compilerOptions);
+        this.classesDir = new File(cacheDir, cacheKey());
+        for (String path : this.templates.keySet()) {
+            int lastSlash = path.lastIndexOf('/');
+            templateDirs.add(lastSlash >= 0 ? path.substring(0, lastSlash + 1) : "");
+        }
+    }
+
+    public static SpecializingClassLoader fromResources(ClassLoader parent, Generator generator,
+            File cacheDir) throws IOException {
+        Map<String, String> templates = new HashMap<>();
+        Enumeration<URL> indexes = parent.getResources(TEMPLATES_INDEX);
+        while (indexes.hasMoreElements()) {
+            for (String line : readLines(indexes.nextElement())) {
+                String path = line.trim();
+                if (path.isEmpty() || path.startsWith("#")) {
+                    continue;
+                }
+                URL template = parent.getResource(TEMPLATES_ROOT + path);
+                if (template == null) {
+                    throw new IOException("Template " + path + " listed in " + TEMPLATES_INDEX +
+                            " is not found");
+                }
+                templates.put(path, String.join("\n", readLines(template)) + "\n");
+            }
+        }
+        List<File> classpath = new ArrayList<>();
+        for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                classpath.add(new File(path));
+            }
+        }
+        return new SpecializingClassLoader(parent, generator, templates, cacheDir, classpath,
+                Collections.emptyList());
+    }
+
+    public File getClassesDir() {
+        return classesDir;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        File classFile = classFile(name);
+        if (!classFile.isFile()) {
+            if (missingClasses.contains(name)) {
+                throw new ClassNotFoundException(name);
+            }
+            synchronized (this) {
+                if (!classFile.isFile() && !missingClasses.contains(name)) {
+                    generateAndCompile(name);
+                    if (!classFile.isFile()) {
+                        missingClasses.add(name);
+                    }
+                }
+            }
+        }
+        if (!classFile.isFile()) {
+            throw new ClassNotFoundException(name);
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(classFile.toPath());
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        definePackageIfNeeded(name);
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    private void definePackageIfNeeded(String className) {
+        int lastDot = className.lastIndexOf('.');
+        if (lastDot < 0) {
+            return;
+        }
+        String packageName = className.substring(0, lastDot);
+        if (getPackage(packageName) == null) {
+            try {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                // Defined concurrently
+            }
+        }
+    }
+
+    private File classFile(String binaryName) {
+        return new File(classesDir, binaryName.replace('.', '/') + ".class");
+    }
+
+    private void generateAndCompile(String binaryName) throws ClassNotFoundException {
+        int nestedStart = binaryName.indexOf('$');
+        String topLevelName = nestedStart >= 0 ? binaryName.substring(0, nestedStart) : binaryName;
+        String sourcePath = topLevelName.replace('.', '/') + ".java";
+        try {
+            if (!mayGenerate(sourcePath)) {
+                return;
+            }
+            Map<String, String> sources = generateSources(sourcePath);
+            if (!sources.containsKey(sourcePath)) {
+                return;
+            }
+            log.info("Compiling {} generated sources for {}", sources.size(), binaryName);
+            compile(sources);
+        } catch (IOException | RuntimeException e) {
+            throw new ClassNotFoundException(binaryName, e);
+        }
+    }
+
+    private Map<String, String> generateSources(String sourcePath) throws IOException {
+        Map<String, String> sources = new HashMap<>();
+        Set<String> requested = new HashSet<>();
+        List<String> wave = new ArrayList<>(Collections.singletonList(sourcePath));
+        requested.add(sourcePath);
+        // Restored after, the generator is configured by the user
+        Set<String> retainedOutputs = generator.getRetainedOutputs();
+        try {
+            while (!wave.isEmpty()) {
+                if (retainedOutputs != null) {
+                    wave.retainAll(retainedOutputs);
+                }
+                generator.setRetainedOutputs(wave);
+                Map<String, String> generated = generator.generate(templates);
+                List<String> nextWave = new ArrayList<>();
+                for (String path : wave) {
+                    String content = generated.get(path);
+                    if (content == null) {
+                        continue;
+                    }
+                    sources.put(path, content);
+                    Matcher identifiers = IDENTIFIER.matcher(content);
+                    while (identifiers.find()) {
+                        for (String dir : templateDirs) {
+                            String referencedPath = dir + identifiers.group() + ".java";
+                            if (requested.add(referencedPath) && mayGenerate(referencedPath) &&
+                                    !isAvailable(referencedPath)) {
+                                nextWave.add(referencedPath);
+                            }
+                        }
+                    }
+                }
+                wave = nextWave;
+            }
+        } finally {
+            generator.setRetainedOutputs(retainedOutputs);
+        }
+        return sources;
+    }
+
+    /**
+     * Whether the templates may generate the given source. The names of the specializations are
+     * known without generating them, except in templates which redefine ClassName.
+     */
+    private boolean mayGenerate(String sourcePath) {
+        if (generatableSources == null) {
+            Set<String> sources = new HashSet<>();
+            templates.forEach((path, content) -> {
+                String dir = path.substring(0, path.lastIndexOf('/') + 1);
+                if (content.contains("ClassName")) {
+                    renamingTemplateDirs.add(dir);
+                }
+                for (String fileName : generator.previewTargets(path, content).keySet()) {
+                    sources.add(dir + fileName);
+                }
+            });
+            generatableSources = sources;
+        }
+        String dir = sourcePath.substring(0, sourcePath.lastIndexOf('/') + 1);
+        return generatableSources.contains(sourcePath) || renamingTemplateDirs.contains(dir);
+    }
+
+    private boolean isAvailable(String sourcePath) {
+        String classPath = sourcePath.substring(0, sourcePath.length() - ".java".length()) +
+                ".class";
+        if (new File(classesDir, classPath).isFile()) {
+            return true;
+        }
+        ClassLoader parent = getParent();
+        return parent != null && parent.getResource(classPath) != null;
+    }
+
+    private void compile(Map<String, String> sources) throws IOException {
+        classesDir.mkdirs();
+        Path tmpDir = Files.createTempDirectory(classesDir.getParentFile().toPath(), "compile");
+        try {
+            List<File> compileClasspath = new ArrayList<>();
+            compileClasspath.add(classesDir);
+            compileClasspath.addAll(classpath);
+            try (CompilingOutputSink sink = new CompilingOutputSink(
+                    tmpDir.toFile(), compileClasspath, compilerOptions, null)) {
+                Set<String> dirs = new TreeSet<>();
+                for (Map.Entry<String, String> source : sources.entrySet()) {
+                    String path = source.getKey();
+                    sink.write(path, source.getValue());
+                    int lastSlash = path.lastIndexOf('/');
+                    dirs.add(lastSlash >= 0 ? path.substring(0, lastSlash) : "");
+                }
+                for (String dir : dirs) {
+                    sink.directoryFinished(dir);
+                }
+                sink.commit();
+            }
+            List<Path> classFiles;
+            try (Stream<Path> files = Files.walk(tmpDir)) {
+                classFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path classFile : classFiles) {
+                Path target = classesDir.toPath().resolve(tmpDir.relativize(classFile));
+                Files.createDirectories(target.getParent());
+                Files.move(classFile, target, ATOMIC_MOVE, REPLACE_EXISTING);
+            }
+        } finally {
+            deleteRecursively(tmpDir);
+        }
+    }
+
+    private String cacheKey() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            List<String> parts = new ArrayList<>();
+            String configurationKey = generator.getConfigurationKey();
+            if (configurationKey == null) {
+                throw new IllegalArgumentException("Classes generated with " + generator +
+                        " can't be cached because the configuration of some of its processors " +
+                        "couldn't be described, see TemplateProcessor.configurationKey()");
+            }
+            parts.add(configurationKey);
+            parts.add(System.getProperty("java.specification.version"));
+            parts.addAll(compilerOptions);
+            for (File entry : classpath) {
+                addClasspathEntry(parts, entry);
+            }
+            templates.forEach((path, content) -> {
+                parts.add(path);
+                parts.add(content);
+            });
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                // Separator, not to make keys of ("ab", "c") and ("a", "bc") parts equal
+                digest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Describes the class path entry by the lengths and modification times of its files, so that
+     * classes compiled against an older version of the entry are not reused.
+     */
+    private static void addClasspathEntry(List<String> parts, File entry) throws IOException {
+        parts.add(entry.getAbsolutePath());
+        if (entry.isFile()) {
+            parts.add(entry.length() + " " + entry.lastModified());
+        } else if (entry.isDirectory()) {
+            List<Path> files;
+            try (Stream<Path> paths = Files.walk(entry.toPath())) {
+                files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                parts.add(entry.toPath().relativize(file).toString());
+                parts.add(Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis());
+            }
+        }
+    }
+
+    private static List<String> readLines(URL url) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = url.openStream();
+             BufferedReader reader =
+                     new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            List<Path> paths = new ArrayList<>();
+            files.forEach(paths::add);
+            Collections.reverse(paths);
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
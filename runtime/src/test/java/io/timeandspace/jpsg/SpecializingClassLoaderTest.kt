@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014-2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.timeandspace.jpsg
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.lang.reflect.InvocationTargetException
+import java.net.URLClassLoader
+import java.util.*
+
+class SpecializingClassLoaderTest : TempDirTest() {
+
+    private val aotClassesDir = dir.resolve("aot")
+    private lateinit var parent: URLClassLoader
+
+    @AfterEach
+    fun closeParent() {
+        parent.close()
+    }
+
+    @Test
+    fun testGeneratedClassUsesPublicMembersOfParentClasses() {
+        val loader = loader()
+        val longBox = loader.loadClass("p.LongBox")
+        assertSame(loader, longBox.classLoader)
+        // The return type is specialized to long
+        assertEquals(1L, longBox.getMethod("get").invoke(null))
+    }
+
+    @Test
+    fun testGeneratedClassCannotAccessPackagePrivateMembersOfParentClasses() {
+        // Compiles in the same package, but is defined in another runtime package
+        val longPeek = loader().loadClass("p.LongPeek")
+        val e = assertThrows(InvocationTargetException::class.java) {
+            longPeek.getMethod("get").invoke(null)
+        }
+        assertTrue(e.cause is IllegalAccessError, e.cause.toString())
+    }
+
+    @Test
+    fun testOnlyReferencedSourcesAreGenerated() {
+        val generatedContexts = Collections.synchronizedList(ArrayList<String>())
+        val generator = Generator().addListener(object : GenerationListener {
+            override fun contextGenerated(template: File, target: Context, nanos: Long) {
+                generatedContexts.add("${template.name} $target")
+            }
+        })
+        val templates = TEMPLATES + mapOf(
+                "p/IntHelper.java" to "/* with int|long elem */\npackage p;\n\n" +
+                        "public class IntHelper {\n" +
+                        "    public static int get() { return Base.open(); }\n}\n",
+                "p/IntUser.java" to "/* with int|long elem */\npackage p;\n\n" +
+                        "public class IntUser {\n" +
+                        "    public static int get() { return IntHelper.get(); }\n}\n")
+        assertEquals(1L, loader(generator, templates).loadClass("p.LongUser")
+                .getMethod("get").invoke(null))
+        assertEquals(setOf("IntUser.java {elem=Long}", "IntHelper.java {elem=Long}"),
+                generatedContexts.toSet())
+    }
+
+    @Test
+    fun testMissingClassesAreNotGeneratedAgain() {
+        var generations = 0
+        val generator = Generator().addListener(object : GenerationListener {
+            override fun generationStarted(source: File?, target: File?, templateFiles: Int) {
+                generations++
+            }
+        })
+        val loader = loader(generator)
+        // Not a name of any specialization, so nothing is generated
+        assertThrows(ClassNotFoundException::class.java) { loader.loadClass("p.LongCrate") }
+        assertThrows(ClassNotFoundException::class.java) { loader.loadClass("q.LongBox") }
+        assertEquals(0, generations)
+        // The source is generated, but doesn't have the nested class
+        repeat(2) {
+            assertThrows(ClassNotFoundException::class.java) {
+                loader.loadClass("p.LongBox\$Missing")
+            }
+        }
+        assertEquals(1, generations)
+    }
+
+    @Test
+    fun testCacheIsKeyedByCompileClasspath() {
+        val classesDir = loader().classesDir
+        assertEquals(classesDir, SpecializingClassLoader(parent, Generator(), TEMPLATES,
+                dir.resolve("cache"), listOf(aotClassesDir), emptyList()).classesDir)
+        val baseClass = aotClassesDir.resolve("p/Base.class")
+        baseClass.setLastModified(baseClass.lastModified() - 10_000)
+        assertNotEquals(classesDir, SpecializingClassLoader(parent, Generator(), TEMPLATES,
+                dir.resolve("cache"), listOf(aotClassesDir), emptyList()).classesDir)
+    }
+
+    /**
+     * Creates a class loader whose parent has the ahead-of-time compiled `p.Base` class, used by
+     * the templates generated at runtime.
+     */
+    private fun loader(generator: Generator = Generator(),
+                       templates: Map<String, String> = TEMPLATES): SpecializingClassLoader {
+        CompilingOutputSink(aotClassesDir, emptyList(), emptyList(), null).use { sink ->
+            sink.write("p/Base.java", "package p;\n\npublic class Base {\n" +
+                    "    public static int open() { return 1; }\n" +
+                    "    static int secret() { return 2; }\n}\n")
+            sink.directoryFinished("p")
+            sink.commit()
+        }
+        parent = URLClassLoader(arrayOf(aotClassesDir.toURI().toURL()), null)
+        return SpecializingClassLoader(parent, generator, templates, dir.resolve("cache"),
+                listOf(aotClassesDir), emptyList())
+    }
+
+    companion object {
+        private val TEMPLATES = mapOf(
+                "p/IntBox.java" to "/* with int|long elem */\npackage p;\n\n" +
+                        "public class IntBox {\n" +
+                        "    public static int get() { return Base.open(); }\n}\n",
+                "p/IntPeek.java" to "/* with int|long elem */\npackage p;\n\n" +
+                        "public class IntPeek {\n" +
+                        "    public static int get() { return Base.secret(); }\n}\n")
+    }
+}